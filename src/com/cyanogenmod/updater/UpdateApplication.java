@@ -12,7 +12,9 @@ package com.cyanogenmod.updater;
 
 import android.app.Activity;
 import android.app.Application;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.StrictMode;
 
 import com.android.volley.RequestQueue;
 import com.android.volley.toolbox.Volley;
@@ -25,6 +27,17 @@ public class UpdateApplication extends Application implements
 
     @Override
     public void onCreate() {
+        if (Build.IS_DEBUGGABLE) {
+            // Disk and network work belongs on worker threads, report any regressions
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .detectNetwork()
+                    .penaltyLog()
+                    .penaltyDropBox()
+                    .build());
+        }
+
         mMainActivityActive = false;
         registerActivityLifecycleCallbacks(this);
         mRequestQueue = Volley.newRequestQueue(this);
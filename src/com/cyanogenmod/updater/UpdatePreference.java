@@ -59,6 +59,7 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
     private Context mContext;
     private UpdateInfo mUpdateInfo = null;
     private int mStyle;
+    private boolean mABUpdate;
 
     private ImageView mStopDownloadButton;
     private TextView mTitleText;
@@ -234,6 +235,17 @@ public class UpdatePreference extends Preference implements OnClickListener, OnL
         return mUpdateInfo;
     }
 
+    /**
+     * Whether the downloaded package is an A/B update, looked up when the list is loaded
+     */
+    public boolean isABUpdate() {
+        return mABUpdate;
+    }
+
+    public void setABUpdate(boolean abUpdate) {
+        mABUpdate = abUpdate;
+    }
+
     private void updatePreferenceViews() {
         if (mUpdatesPref != null) {
             mUpdatesPref.setEnabled(true);
@@ -10,7 +10,6 @@ package com.cyanogenmod.updater;
 
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.os.Build;
 import android.os.Bundle;
 import android.support.design.widget.AppBarLayout;
 import android.support.design.widget.CollapsingToolbarLayout;
@@ -24,6 +23,7 @@ import android.view.MenuItem;
 import android.widget.TextView;
 
 import com.cyanogenmod.updater.misc.Constants;
+import com.cyanogenmod.updater.misc.InstalledBuild;
 import com.cyanogenmod.updater.utils.Utils;
 
 import java.util.Date;
@@ -44,7 +44,7 @@ public class UpdatesActivity extends AppCompatActivity {
 
         mSettingsFragment = new UpdatesSettings();
 
-        final String version = Utils.getInstalledVersionName();
+        final String version = InstalledBuild.get().getVersionName();
         headerCm.setText(String.format(getString(R.string.header_os), version));
 
         getSupportFragmentManager().beginTransaction()
@@ -119,9 +119,10 @@ public class UpdatesActivity extends AppCompatActivity {
     }
 
     private void updateHeader() {
+        InstalledBuild installed = InstalledBuild.get();
         mHeaderInfo.setText(String.format(getString(R.string.header_summary),
-                Utils.getDateLocalized(this, Utils.getInstalledBuildDate()),
-                Utils.getInstalledBuildType(), Build.VERSION.RELEASE, getLastCheck()));
+                Utils.getDateLocalized(this, installed.getBuildDate()),
+                installed.getBuildType(), installed.getAndroidVersion(), getLastCheck()));
     }
 
     private String getLastCheck() {
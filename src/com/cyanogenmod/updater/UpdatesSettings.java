@@ -15,27 +15,32 @@ import android.app.AlertDialog;
 import android.app.DownloadManager;
 import android.app.ProgressDialog;
 import android.content.BroadcastReceiver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Parcelable;
+import android.provider.Downloads;
 import android.support.v7.preference.ListPreference;
 import android.support.v7.preference.Preference;
 import android.support.v7.preference.PreferenceCategory;
 import android.support.v7.preference.PreferenceFragmentCompat;
 import android.support.v7.preference.PreferenceManager;
+import android.support.v7.preference.SwitchPreferenceCompat;
 import android.text.Html;
 import android.text.method.LinkMovementMethod;
 import android.text.Spanned;
 import android.text.TextUtils;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -47,12 +52,21 @@ import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
+import com.cyanogenmod.updater.download.DownloadProgress;
+import com.cyanogenmod.updater.download.SegmentedDownloader;
+import com.cyanogenmod.updater.misc.BuildFileName;
+import com.cyanogenmod.updater.misc.BuildOrder;
 import com.cyanogenmod.updater.misc.Constants;
-import com.cyanogenmod.updater.misc.State;
+import com.cyanogenmod.updater.misc.InstalledBuild;
+import com.cyanogenmod.updater.misc.PackageMetadata;
+import com.cyanogenmod.updater.misc.UpdateCatalog;
 import com.cyanogenmod.updater.misc.UpdateInfo;
 import com.cyanogenmod.updater.receiver.DownloadReceiver;
 import com.cyanogenmod.updater.service.ABOTAService;
+import com.cyanogenmod.updater.service.DownloadService;
+import com.cyanogenmod.updater.service.PrefetchJobService;
 import com.cyanogenmod.updater.service.UpdateCheckService;
+import com.cyanogenmod.updater.utils.SpacePlanner;
 import com.cyanogenmod.updater.utils.UpdateFilter;
 import com.cyanogenmod.updater.utils.Utils;
 
@@ -61,9 +75,11 @@ import org.cyanogenmod.internal.util.ScreenType;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class UpdatesSettings extends PreferenceFragmentCompat implements
         Preference.OnPreferenceChangeListener, UpdatePreference.OnReadyListener,
@@ -77,13 +93,29 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
 
     private static final String UPDATES_CATEGORY = "updates_category";
 
+    // Resolution of the download progress bar
+    private static final int PROGRESS_MAX = 10000;
+    private static final long DOWNLOAD_QUERY_INTERVAL = 500; // 500 ms
+
     private SharedPreferences mPrefs;
     private ListPreference mUpdateCheck;
+    private ListPreference mRateLimit;
+    private SwitchPreferenceCompat mPrefetch;
 
     private PreferenceCategory mUpdatesList;
     private UpdatePreference mDownloadingPreference;
 
     private File mUpdateFolder;
+    // Packages being moved into the updates folder, as of the last load
+    private HashSet<String> mCompletingFiles = new HashSet<String>();
+    // Downloaded packages that are A/B updates, as of the last load
+    private HashSet<String> mABFiles = new HashSet<String>();
+
+    // Runs the disk work of the UI, one task at a time
+    private static final ExecutorService sLayoutExecutor = Executors.newSingleThreadExecutor();
+    private int mLayoutGeneration;
+    // Whether the space for a download is being checked
+    private boolean mCheckingSpace;
 
     private Context mContext;
 
@@ -97,6 +129,20 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
 
     private Handler mUpdateHandler = new Handler();
 
+    // The DownloadManager download being observed, -1 if none
+    private long mObservedDownloadId = -1;
+    private boolean mDownloadQueryPending;
+    private final ContentObserver mDownloadObserver = new ContentObserver(mUpdateHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            // DownloadManager reports every write, query at most so often
+            if (!mDownloadQueryPending) {
+                mDownloadQueryPending = true;
+                mUpdateHandler.postDelayed(mQueryDownloadProgress, DOWNLOAD_QUERY_INTERVAL);
+            }
+        }
+    };
+
     private BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -154,10 +200,22 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
                 }
 
                 mStartUpdateVisible = false;
-                ABOTAService.setABUpdateRunning(false);
                 int errorCode = intent.getIntExtra(ABOTAService.EXTRA_ERROR_CODE, -1);
-                ABOTAService.notifyOngoingABOTA(context, -1, errorCode);
                 showSnack(String.format(mContext.getString(R.string.installing_zip_failed, errorCode)));
+                updateLayout();
+            } else if (ABOTAService.ACTION_UPDATE_INSTALL_REJECTED.equals(action)) {
+                if (mProgressDialog != null) {
+                    mProgressDialog.dismiss();
+                    mProgressDialog = null;
+                }
+
+                mStartUpdateVisible = false;
+                showSnack(mContext.getString(R.string.ab_update_running));
+                updateLayout();
+            } else if (ABOTAService.ACTION_UPDATE_INSTALL_CANCELLED.equals(action)) {
+                mStartUpdateVisible = false;
+                showSnack(mContext.getString(R.string.installing_package_cancelled));
+                updateLayout();
             }
         }
     };
@@ -172,6 +230,8 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
         setPreferencesFromResource(R.xml.main, null);
         mUpdatesList = (PreferenceCategory) findPreference(UPDATES_CATEGORY);
         mUpdateCheck = (ListPreference) findPreference(Constants.UPDATE_CHECK_PREF);
+        mRateLimit = (ListPreference) findPreference(Constants.DOWNLOAD_RATE_LIMIT_PREF);
+        mPrefetch = (SwitchPreferenceCompat) findPreference(Constants.PREFETCH_PREF);
 
         // Load the stored preference data
         mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
@@ -184,6 +244,24 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
             mUpdateCheck.setOnPreferenceChangeListener(this);
         }
 
+        if (mRateLimit != null) {
+            if (getResources().getBoolean(R.bool.conf_segmented_download)) {
+                int limit = mPrefs.getInt(Constants.DOWNLOAD_RATE_LIMIT_PREF, 0);
+                mRateLimit.setValue(String.valueOf(limit));
+                mRateLimit.setSummary(mapRateLimitValue(limit));
+                mRateLimit.setOnPreferenceChangeListener(this);
+            } else {
+                // DownloadManager can't be throttled
+                getPreferenceScreen().removePreference(mRateLimit);
+                mRateLimit = null;
+            }
+        }
+
+        if (mPrefetch != null) {
+            mPrefetch.setChecked(mPrefs.getBoolean(Constants.PREFETCH_PREF, false));
+            mPrefetch.setOnPreferenceChangeListener(this);
+        }
+
         // Force a refresh if UPDATE_TYPE_PREF does not match release type
         String updateType = Utils.getUpdateType();
         String updateTypePref = mPrefs.getString(Constants.UPDATE_TYPE_PREF,
@@ -207,6 +285,21 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
             mUpdateCheck.setSummary(mapCheckValue(value));
             Utils.scheduleUpdateService(mContext, value * 1000);
             return true;
+        } else if (preference == mRateLimit) {
+            int value = Integer.valueOf((String) newValue);
+            mPrefs.edit().putInt(Constants.DOWNLOAD_RATE_LIMIT_PREF, value).apply();
+            mRateLimit.setSummary(mapRateLimitValue(value));
+            DownloadService.updateRateLimit(mContext);
+            return true;
+        } else if (preference == mPrefetch) {
+            boolean enabled = (Boolean) newValue;
+            mPrefs.edit().putBoolean(Constants.PREFETCH_PREF, enabled).apply();
+            if (enabled) {
+                PrefetchJobService.schedule(mContext);
+            } else {
+                PrefetchJobService.cancel(mContext);
+            }
+            return true;
         }
 
         return false;
@@ -215,12 +308,21 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
     @Override
     public void onStart() {
         super.onStart();
+        DownloadService.setUiVisible(mContext, true);
 
         getListView().setNestedScrollingEnabled(false);
 
         // Determine if there are any in-progress downloads
         mDownloadId = mPrefs.getLong(Constants.DOWNLOAD_ID, -1);
-        if (mDownloadId >= 0) {
+        if (DownloadService.isInAppDownload(mDownloadId)) {
+            SegmentedDownloader download = DownloadService.getActiveDownload(mDownloadId);
+            if (download == null) {
+                showSnack(mContext.getString(R.string.download_not_found));
+            } else if (download.getState() == SegmentedDownloader.STATE_PENDING
+                    || download.getState() == SegmentedDownloader.STATE_RUNNING) {
+                mFileName = mPrefs.getString(Constants.DOWNLOAD_NAME, null);
+            }
+        } else if (mDownloadId >= 0) {
             Cursor c =
                     mDownloadManager.query(new DownloadManager.Query().setFilterById(mDownloadId));
             if (c == null || !c.moveToFirst()) {
@@ -242,13 +344,19 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
             resetDownloadState();
         }
 
+        // The process may have died in the middle of an install
+        ABOTAService.reattach(mContext);
+
         updateLayout();
 
         IntentFilter filter = new IntentFilter(UpdateCheckService.ACTION_CHECK_FINISHED);
         filter.addAction(DownloadReceiver.ACTION_DOWNLOAD_STARTED);
         filter.addAction(ABOTAService.ACTION_UPDATE_INSTALL_FINISHED);
         filter.addAction(ABOTAService.ACTION_UPDATE_INSTALL_ERRORED);
+        filter.addAction(ABOTAService.ACTION_UPDATE_INSTALL_REJECTED);
+        filter.addAction(ABOTAService.ACTION_UPDATE_INSTALL_CANCELLED);
         mContext.registerReceiver(mReceiver, filter);
+        DownloadProgress.getInstance().addListener(mProgressListener);
 
         checkForDownloadCompleted(getActivity().getIntent());
         getActivity().setIntent(null);
@@ -257,7 +365,12 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
     @Override
     public void onStop() {
         super.onStop();
+        DownloadService.setUiVisible(mContext, false);
         mUpdateHandler.removeCallbacks(mUpdateProgress);
+        // Drop the update list still being loaded
+        mLayoutGeneration++;
+        DownloadProgress.getInstance().removeListener(mProgressListener);
+        stopObservingDownload();
         mContext.unregisterReceiver(mReceiver);
         if (mProgressDialog != null) {
             mProgressDialog.cancel();
@@ -273,16 +386,53 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
             return;
         }
 
-        if (mDownloading) {
+        if (mDownloading || mCheckingSpace) {
             showSnack(mContext.getString(R.string.download_already_running));
             return;
         }
 
-        if (ABOTAService.isABUpdateRunning()) {
+        if (ABOTAService.isABUpdateRunning(mContext)) {
             showSnack(mContext.getString(R.string.ab_update_running));
             return;
         }
 
+        // Don't even start if it won't fit, when the server told us the size
+        final UpdateInfo ui = pref.getUpdateInfo();
+        if (ui == null || ui.getSize() <= 0 || Utils.isStreamingUpdateAB(mContext)) {
+            confirmDownload(pref);
+            return;
+        }
+        // Looks at the filesystems, off the main thread
+        mCheckingSpace = true;
+        sLayoutExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long missing = SpacePlanner.getMissingSpace(mContext,
+                        ui.getFileName(), ui.getSize());
+                mUpdateHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCheckingSpace = false;
+                        if (!isResumed()) {
+                            // Left meanwhile
+                            return;
+                        }
+                        if (missing > 0) {
+                            showSnack(mContext.getString(R.string.not_enough_space,
+                                    Formatter.formatShortFileSize(mContext, missing)));
+                            return;
+                        }
+                        confirmDownload(pref);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Start the download, once the user agreed to use mobile data if needed
+     */
+    private void confirmDownload(final UpdatePreference pref) {
         if (!isOnWifiOrEthernet() && !isMobileDataWarningIgnored()) {
             LayoutInflater inflater = LayoutInflater.from(mContext);
             View checkBoxView =
@@ -346,11 +496,6 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
                 return;
             }
 
-            ProgressBar progressBar = mDownloadingPreference.getProgressBar();
-            if (progressBar == null) {
-                return;
-            }
-
             ImageView updatesButton = mDownloadingPreference.getUpdatesButton();
             if (updatesButton == null) {
                 return;
@@ -359,57 +504,145 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
             // Enable updates button
             updatesButton.setEnabled(true);
 
-            DownloadManager.Query q = new DownloadManager.Query();
-            q.setFilterById(mDownloadId);
-
-            Cursor cursor = mDownloadManager.query(q);
-            int status;
-
-            if (cursor == null || !cursor.moveToFirst()) {
-                // DownloadReceiver has likely already removed the download
-                // from the DB due to failure or signature mismatch
-                status = DownloadManager.STATUS_FAILED;
+            // Show where the download is at, the changes are pushed from then on
+            if (DownloadService.isInAppDownload(mDownloadId)) {
+                SegmentedDownloader download = DownloadService.getActiveDownload(mDownloadId);
+                if (download == null) {
+                    showDownloadProgress(SegmentedDownloader.STATE_FAILED, 0, -1);
+                } else {
+                    showDownloadProgress(download.getState(), download.getDownloadedBytes(),
+                            download.getTotalBytes());
+                }
             } else {
-                status = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_STATUS));
+                observeDownload(mDownloadId);
+                queryDownloadProgress();
             }
+        }
+    };
 
-            switch (status) {
-                case DownloadManager.STATUS_PENDING:
-                    progressBar.setIndeterminate(true);
-                    break;
-                case DownloadManager.STATUS_PAUSED:
-                case DownloadManager.STATUS_RUNNING:
-                    int downloadedBytes = cursor.getInt(
-                        cursor.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
-                    int totalBytes = cursor.getInt(
-                        cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
-
-                    if (totalBytes < 0) {
-                        progressBar.setIndeterminate(true);
-                    } else {
-                        progressBar.setIndeterminate(false);
-                        progressBar.setMax(totalBytes);
-                        progressBar.setProgress(downloadedBytes);
-                    }
-                    break;
-                case DownloadManager.STATUS_FAILED:
-                    mDownloadingPreference.setStyle(UpdatePreference.STYLE_NEW);
-                    resetDownloadState();
-                    break;
-                case DownloadManager.STATUS_SUCCESSFUL:
-                    mDownloadingPreference.setStyle(UpdatePreference.STYLE_COMPLETING);
-                    break;
+    private final DownloadProgress.Listener mProgressListener = new DownloadProgress.Listener() {
+        @Override
+        public void onProgress(long downloadId, int state, long downloadedBytes,
+                long totalBytes) {
+            if (mDownloading && downloadId == mDownloadId) {
+                showDownloadProgress(state, downloadedBytes, totalBytes);
             }
+        }
+    };
+
+    private final Runnable mQueryDownloadProgress = new Runnable() {
+        @Override
+        public void run() {
+            mDownloadQueryPending = false;
+            queryDownloadProgress();
+        }
+    };
 
-            if (cursor != null) {
+    /**
+     * Follow the changes DownloadManager makes to the download
+     */
+    private void observeDownload(long downloadId) {
+        if (mObservedDownloadId == downloadId) {
+            return;
+        }
+        stopObservingDownload();
+        mObservedDownloadId = downloadId;
+        mContext.getContentResolver().registerContentObserver(
+                ContentUris.withAppendedId(Downloads.Impl.CONTENT_URI, downloadId), false,
+                mDownloadObserver);
+    }
+
+    private void stopObservingDownload() {
+        if (mObservedDownloadId >= 0) {
+            mContext.getContentResolver().unregisterContentObserver(mDownloadObserver);
+            mObservedDownloadId = -1;
+        }
+        mUpdateHandler.removeCallbacks(mQueryDownloadProgress);
+        mDownloadQueryPending = false;
+    }
+
+    private void queryDownloadProgress() {
+        if (!mDownloading || mDownloadId < 0) {
+            return;
+        }
+        DownloadManager.Query q = new DownloadManager.Query();
+        q.setFilterById(mDownloadId);
+
+        int state = SegmentedDownloader.STATE_FAILED;
+        long downloadedBytes = 0;
+        long totalBytes = -1;
+        Cursor cursor = mDownloadManager.query(q);
+        // Otherwise DownloadReceiver has likely already removed the download
+        // from the DB due to failure or signature mismatch
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    int status = cursor.getInt(
+                            cursor.getColumnIndex(DownloadManager.COLUMN_STATUS));
+                    state = mapDownloadManagerStatus(status);
+                    downloadedBytes = cursor.getLong(cursor.getColumnIndex(
+                            DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
+                    totalBytes = cursor.getLong(
+                            cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
+                }
+            } finally {
                 cursor.close();
             }
-            if (status != DownloadManager.STATUS_FAILED
-                    && status != DownloadManager.STATUS_SUCCESSFUL) {
-                mUpdateHandler.postDelayed(this, 1000);
-            }
         }
-    };
+        showDownloadProgress(state, downloadedBytes, totalBytes);
+    }
+
+    private static int mapDownloadManagerStatus(int status) {
+        switch (status) {
+            case DownloadManager.STATUS_PENDING:
+                return SegmentedDownloader.STATE_PENDING;
+            case DownloadManager.STATUS_PAUSED:
+            case DownloadManager.STATUS_RUNNING:
+                return SegmentedDownloader.STATE_RUNNING;
+            case DownloadManager.STATUS_SUCCESSFUL:
+                return SegmentedDownloader.STATE_SUCCESSFUL;
+            default:
+                return SegmentedDownloader.STATE_FAILED;
+        }
+    }
+
+    /**
+     * @param state one of the SegmentedDownloader STATE_* constants
+     */
+    private void showDownloadProgress(int state, long downloadedBytes, long totalBytes) {
+        if (mDownloadingPreference == null) {
+            return;
+        }
+        ProgressBar progressBar = mDownloadingPreference.getProgressBar();
+        if (progressBar == null) {
+            return;
+        }
+
+        switch (state) {
+            case SegmentedDownloader.STATE_PENDING:
+                progressBar.setIndeterminate(true);
+                break;
+            case SegmentedDownloader.STATE_RUNNING:
+                if (totalBytes <= 0) {
+                    progressBar.setIndeterminate(true);
+                } else {
+                    // Scaled, the byte counts don't fit in an int
+                    progressBar.setIndeterminate(false);
+                    progressBar.setMax(PROGRESS_MAX);
+                    progressBar.setProgress((int) (downloadedBytes * PROGRESS_MAX / totalBytes));
+                }
+                break;
+            case SegmentedDownloader.STATE_SUCCESSFUL:
+                stopObservingDownload();
+                mDownloadingPreference.setStyle(UpdatePreference.STYLE_COMPLETING);
+                break;
+            default:
+                stopObservingDownload();
+                mDownloadingPreference.setStyle(UpdatePreference.STYLE_NEW);
+                resetDownloadState();
+                break;
+        }
+    }
 
     @Override
     public void onStopCompletingDownload(final UpdatePreference pref) {
@@ -419,7 +652,7 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
             return;
         }
 
-        final File tmpZip = new File(mUpdateFolder, mFileName + Constants.DOWNLOAD_TMP_EXT);
+        final File tmpZip = new File(getUpdateFolder(), mFileName + Constants.DOWNLOAD_TMP_EXT);
         new AlertDialog.Builder(mContext)
                 .setTitle(R.string.confirm_download_cancelation_dialog_title)
                 .setMessage(R.string.confirm_download_cancelation_dialog_message)
@@ -459,8 +692,13 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
                         pref.setStyle(UpdatePreference.STYLE_NEW);
 
                         // We are OK to stop download, trigger it
-                        mDownloadManager.remove(mDownloadId);
+                        if (DownloadService.isInAppDownload(mDownloadId)) {
+                            DownloadService.cancelDownload(mDownloadId);
+                        } else {
+                            mDownloadManager.remove(mDownloadId);
+                        }
                         mUpdateHandler.removeCallbacks(mUpdateProgress);
+                        stopObservingDownload();
                         resetDownloadState();
 
                         // Clear the stored data from shared preferences
@@ -495,16 +733,33 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
             return;
         }
 
-        String fileName = new File(fullPathName).getName();
+        final String fileName = new File(fullPathName).getName();
 
-        // Find the matching preference so we can retrieve the UpdateInfo
-        UpdatePreference pref = (UpdatePreference) mUpdatesList.findPreference(fileName);
-        if (pref != null) {
-            pref.setStyle(UpdatePreference.STYLE_DOWNLOADED);
-            onStartUpdate(pref);
-        }
+        // The package is examined off the main thread, by then the list is loaded
+        sLayoutExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean isABUpdate = Utils.isABUpdate(mContext, fileName);
+                mUpdateHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isAdded()) {
+                            return;
+                        }
+                        // Find the matching preference so we can retrieve the UpdateInfo
+                        UpdatePreference pref =
+                                (UpdatePreference) mUpdatesList.findPreference(fileName);
+                        if (pref != null) {
+                            pref.setABUpdate(isABUpdate);
+                            pref.setStyle(UpdatePreference.STYLE_DOWNLOADED);
+                            onStartUpdate(pref);
+                        }
 
-        resetDownloadState();
+                        resetDownloadState();
+                    }
+                });
+            }
+        });
     }
 
     private void resetDownloadState() {
@@ -515,19 +770,27 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
     }
 
     private String mapCheckValue(Integer value) {
+        return mapListValue(R.array.update_check_entries, R.array.update_check_values, value);
+    }
+
+    private String mapRateLimitValue(Integer value) {
+        return mapListValue(R.array.rate_limit_entries, R.array.rate_limit_values, value);
+    }
+
+    private String mapListValue(int entriesResId, int valuesResId, Integer value) {
         Resources resources = getResources();
-        String[] checkNames = resources.getStringArray(R.array.update_check_entries);
-        String[] checkValues = resources.getStringArray(R.array.update_check_values);
-        for (int i = 0; i < checkValues.length; i++) {
-            if (Integer.decode(checkValues[i]).equals(value)) {
-                return checkNames[i];
+        String[] names = resources.getStringArray(entriesResId);
+        String[] values = resources.getStringArray(valuesResId);
+        for (int i = 0; i < values.length; i++) {
+            if (Integer.decode(values[i]).equals(value)) {
+                return names[i];
             }
         }
         return getString(R.string.unknown);
     }
 
     void checkForUpdates() {
-        if (mProgressDialog != null || ABOTAService.isABUpdateRunning()) {
+        if (mProgressDialog != null || ABOTAService.isABUpdateRunning(mContext)) {
             return;
         }
 
@@ -560,86 +823,124 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
     }
 
     void updateLayout() {
-        // Read existing Updates
-        LinkedList<String> existingFiles = new LinkedList<String>();
-
-        mUpdateFolder = Utils.makeUpdateFolder(mContext);
-        File[] files = mUpdateFolder.listFiles(new UpdateFilter(".zip"));
+        // Clear the notification if one exists
+        Utils.cancelNotification(getActivity());
 
-        if (mUpdateFolder.exists() && mUpdateFolder.isDirectory() && files != null) {
-            for (File file : files) {
-                if (file.isFile()) {
-                    existingFiles.add(file.getName());
+        // The catalog and the updates folder are read off the main thread
+        final int generation = ++mLayoutGeneration;
+        sLayoutExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File updateFolder = Utils.makeUpdateFolder(mContext);
+                final LinkedList<UpdateInfo> updates = loadUpdates();
+                final HashSet<String> completingFiles = new HashSet<String>();
+                final HashSet<String> abFiles = new HashSet<String>();
+                for (UpdateInfo ui : updates) {
+                    String fileName = ui.getFileName();
+                    if (new File(updateFolder, fileName + Constants.DOWNLOAD_TMP_EXT).isFile()) {
+                        completingFiles.add(fileName);
+                    }
+                    // Opens the package the first time, the result is kept next to it
+                    if (ui.getDownloadUrl() == null && Utils.isABUpdate(mContext, fileName)) {
+                        abFiles.add(fileName);
+                    }
                 }
+
+                mUpdateHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mLayoutGeneration) {
+                            // Superseded, or stopped meanwhile
+                            return;
+                        }
+                        mUpdateFolder = updateFolder;
+                        mCompletingFiles = completingFiles;
+                        mABFiles = abFiles;
+                        refreshPreferences(updates);
+                    }
+                });
+
+                pruneChangeLogs(updates);
             }
-        }
+        });
+    }
 
-        // Clear the notification if one exists
-        Utils.cancelNotification(getActivity());
+    /**
+     * Get the downloaded and the available updates, newest first
+     */
+    private LinkedList<UpdateInfo> loadUpdates() {
+        UpdateCatalog catalog = UpdateCatalog.getInstance(mContext);
+
+        // Read existing Updates
+        LinkedList<String> existingFiles = catalog.getDownloadedFiles();
 
         // Build list of updates
-        LinkedList<UpdateInfo> availableUpdates = State.loadState(mContext);
-        final LinkedList<UpdateInfo> updates = new LinkedList<UpdateInfo>();
+        LinkedList<UpdateInfo> availableUpdates = catalog.getAvailableUpdates();
+        LinkedList<UpdateInfo> updates = new LinkedList<UpdateInfo>();
 
         for (String fileName : existingFiles) {
+            BuildFileName name = BuildFileName.parse(fileName);
             updates.add(new UpdateInfo.Builder()
                     .setFileName(fileName)
-                    .setVersion(Utils.getVersionFromFileName(fileName))
-                    .setBuildDate(Utils.getTimestampFromFileName(fileName))
-                    .setType(Utils.getTypeFromFileName(fileName))
+                    .setVersion(name.getVersion())
+                    .setBuildDate(name.getTimestamp())
+                    .setType(name.getType())
                     .build());
         }
+        HashSet<String> existingFileSet = new HashSet<String>(existingFiles);
         for (UpdateInfo update : availableUpdates) {
             // Only add updates to the list that are not already downloaded
-            if (existingFiles.contains(update.getFileName())) {
+            if (existingFileSet.contains(update.getFileName())) {
                 continue;
             }
             updates.add(update);
         }
 
-        Collections.sort(updates, new Comparator<UpdateInfo>() {
-            @Override
-            public int compare(UpdateInfo lhs, UpdateInfo rhs) {
-                // sort in descending 'UI name' order (newest first)
-                return -lhs.getName().compareTo(rhs.getName());
-            }
-        });
-
-        // Update the preference list
-        refreshPreferences(updates);
+        Collections.sort(updates, BuildOrder.NEWEST_FIRST);
+        return updates;
+    }
 
-        // Prune obsolete change log files
-        new Thread() {
-            @Override
-            public void run() {
-                File cacheDir = mContext.getCacheDir();
-                if (cacheDir == null) {
-                    return;
-                }
+    /**
+     * Prune obsolete change log files
+     */
+    private void pruneChangeLogs(LinkedList<UpdateInfo> updates) {
+        File cacheDir = mContext.getCacheDir();
+        if (cacheDir == null) {
+            return;
+        }
 
-                File[] files = cacheDir.listFiles(new UpdateFilter(UpdateInfo.CHANGELOG_EXTENSION));
-                if (files == null) {
-                    return;
-                }
+        File[] files = cacheDir.listFiles(new UpdateFilter(UpdateInfo.CHANGELOG_EXTENSION));
+        if (files == null) {
+            return;
+        }
 
-                for (File file : files) {
-                    boolean updateExists = false;
-                    for (UpdateInfo info : updates) {
-                        if (file.getName().startsWith(info.getFileName())) {
-                            updateExists = true;
-                            break;
-                        }
-                    }
-                    if (!updateExists) {
-                        file.delete();
-                    }
+        for (File file : files) {
+            boolean updateExists = false;
+            for (UpdateInfo info : updates) {
+                if (file.getName().startsWith(info.getFileName())) {
+                    updateExists = true;
+                    break;
                 }
             }
-        }.start();
+            if (!updateExists) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Get the updates folder, known once the list was first loaded
+     */
+    private File getUpdateFolder() {
+        if (mUpdateFolder == null) {
+            // Asked for before the first load, e.g. from the menu
+            mUpdateFolder = Utils.makeUpdateFolder(mContext);
+        }
+        return mUpdateFolder;
     }
 
     private boolean isDownloadCompleting(String fileName) {
-        return new File(mUpdateFolder, fileName + Constants.DOWNLOAD_TMP_EXT).isFile();
+        return mCompletingFiles.contains(fileName);
     }
 
     private void refreshPreferences(LinkedList<UpdateInfo> updates) {
@@ -647,13 +948,17 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
             return;
         }
 
-        UpdateInfo current = Utils.getInstalledUpdateInfo();
+        InstalledBuild installed = InstalledBuild.get();
+        UpdateInfo current = installed.getUpdateInfo();
 
         // Clear the list
         mUpdatesList.removeAll();
 
         // Convert the installed version name to the associated filename
-        String installedZip = "lineage-" + Utils.getInstalledVersion() + ".zip";
+        String installedZip = installed.getFileName();
+        String installingZip = ABOTAService.getInstallName(mContext);
+        boolean needsReboot = ABOTAService.getInstallState(mContext)
+                == ABOTAService.STATE_NEEDS_REBOOT;
 
         // Add the updates
         for (UpdateInfo ui : updates) {
@@ -663,6 +968,10 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
 
             if (!current.isCompatible(ui)) {
                 style = UpdatePreference.STYLE_BLOCKED;
+            } else if (ui.getFileName().equals(installingZip)) {
+                // A/B install in progress or done
+                style = needsReboot ? UpdatePreference.STYLE_INSTALLED
+                        : UpdatePreference.STYLE_INSTALLING;
             } else if (isDownloading) {
                 // In progress download
                 style = UpdatePreference.STYLE_DOWNLOADING;
@@ -680,6 +989,7 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
             }
 
             UpdatePreference up = new UpdatePreference(mContext, ui, style);
+            up.setABUpdate(mABFiles.contains(ui.getFileName()));
             up.setOnActionListener(this);
             up.setKey(ui.getFileName());
 
@@ -707,20 +1017,23 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
     @Override
     public void onDeleteUpdate(UpdatePreference pref) {
         final String fileName = pref.getKey();
+        File updateFolder = getUpdateFolder();
 
-        if (mUpdateFolder.exists() && mUpdateFolder.isDirectory()) {
-            File zipFileToDelete = new File(mUpdateFolder, fileName);
+        if (updateFolder.exists() && updateFolder.isDirectory()) {
+            File zipFileToDelete = new File(updateFolder, fileName);
 
             if (zipFileToDelete.exists()) {
                 zipFileToDelete.delete();
+                PackageMetadata.delete(zipFileToDelete);
             } else {
                 Log.d(TAG, "Update to delete not found");
                 return;
             }
 
+            UpdateCatalog.getInstance(mContext).invalidateDownloads();
             showSnack(getString(R.string.delete_single_update_success_message, fileName));
         } else {
-            showSnack(getString(mUpdateFolder.exists() ?
+            showSnack(getString(updateFolder.exists() ?
                     R.string.delete_updates_failure_message :
                     R.string.delete_updates_noFolder_message));
         }
@@ -734,6 +1047,15 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
             return;
         }
 
+        if (Utils.isStreamingUpdateAB(mContext)) {
+            // Installed as it downloads, nothing is stored
+            mStartUpdateVisible = true;
+            ABOTAService.notifyOngoingABOTA(mContext, -1, ABOTAService.STATUS_PREPARING_ZIP);
+            mDownloadingPreference.setStyle(UpdatePreference.STYLE_INSTALLING);
+            Utils.triggerStreamingUpdateAB(mContext, ui);
+            return;
+        }
+
         mDownloadingPreference.setStyle(UpdatePreference.STYLE_DOWNLOADING);
 
         mFileName = ui.getFileName();
@@ -743,6 +1065,8 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
         Intent intent = new Intent(mContext, DownloadReceiver.class);
         intent.setAction(DownloadReceiver.ACTION_START_DOWNLOAD);
         intent.putExtra(DownloadReceiver.EXTRA_UPDATE_INFO, (Parcelable) ui);
+        // Off Wi-Fi, the user went through the mobile data warning
+        intent.putExtra(DownloadReceiver.EXTRA_METERED_ALLOWED, !isOnWifiOrEthernet());
         mContext.sendBroadcast(intent);
 
         mUpdateHandler.post(mUpdateProgress);
@@ -766,15 +1090,17 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
 
     private boolean deleteOldUpdates() {
         boolean success;
-        //mUpdateFolder: Foldername with fullpath of SDCARD
-        if (mUpdateFolder.exists() && mUpdateFolder.isDirectory()) {
-            Utils.deleteDir(mUpdateFolder);
-            mUpdateFolder.mkdir();
+        //updateFolder: Foldername with fullpath of SDCARD
+        File updateFolder = getUpdateFolder();
+        if (updateFolder.exists() && updateFolder.isDirectory()) {
+            Utils.deleteDir(updateFolder);
+            updateFolder.mkdir();
+            UpdateCatalog.getInstance(mContext).invalidateDownloads();
             success = true;
             showSnack(mContext.getString(R.string.delete_updates_success_message));
         } else {
             success = false;
-            showSnack(mContext.getString(mUpdateFolder.exists() ?
+            showSnack(mContext.getString(updateFolder.exists() ?
                     R.string.delete_updates_failure_message :
                     R.string.delete_updates_noFolder_message));
         }
@@ -788,14 +1114,14 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
             return;
         }
 
-        if (ABOTAService.isABUpdateRunning()) {
+        if (ABOTAService.isABUpdateRunning(mContext)) {
             showSnack(mContext.getString(R.string.ab_update_running));
             return;
         }
 
         mStartUpdateVisible = true;
 
-        if (Utils.isABUpdate(mContext, pref.getUpdateInfo().getFileName())) {
+        if (pref.isABUpdate()) {
             startABUpdate(pref);
         } else {
             startRecoveryUpdate(pref);
@@ -805,8 +1131,6 @@ public class UpdatesSettings extends PreferenceFragmentCompat implements
     private void startABUpdate(UpdatePreference pref) {
         final UpdateInfo updateInfo = pref.getUpdateInfo();
 
-        ABOTAService.setABUpdateRunning(true);
-
         // Get the message body right
         String dialogBody = getString(R.string.apply_update_dialog_text_ab, updateInfo.getName());
 
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SHA-256 of each fixed-size block of a build, published next to it as
+ * "<build url>.blocks". The first line is the block size in bytes, followed
+ * by one hex digest per line for each block in order, the last block may be
+ * shorter. A digest may be followed by the {@link RollingChecksum} of the
+ * block in hex, which allows finding the blocks in a local file.
+ */
+public class BlockManifest {
+    private static final String TAG = "BlockManifest";
+
+    public static final String EXTENSION = ".blocks";
+
+    private static final int CONNECT_TIMEOUT = 15000; // 15 seconds
+    private static final int READ_TIMEOUT = 30000; // 30 seconds
+    // Every connection holds a whole block in memory
+    private static final int MAX_BLOCK_SIZE = 8 * 1024 * 1024;
+
+    private final int mBlockSize;
+    private final byte[][] mDigests;
+    // Null unless every block has one
+    private final int[] mWeakSums;
+
+    private BlockManifest(int blockSize, byte[][] digests, int[] weakSums) {
+        mBlockSize = blockSize;
+        mDigests = digests;
+        mWeakSums = weakSums;
+    }
+
+    /**
+     * Fetch the manifest of the build at the given URL
+     *
+     * @return the manifest, null if there is none or it can't be used
+     */
+    public static BlockManifest fetch(String buildUrl, String userAgent) {
+        HttpURLConnection conn = null;
+        try {
+            conn = (HttpURLConnection) new URL(buildUrl + EXTENSION).openConnection();
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
+            if (userAgent != null) {
+                conn.setRequestProperty("User-Agent", userAgent);
+            }
+            int code = conn.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                Log.d(TAG, "No block manifest for " + buildUrl + ", response code " + code);
+                return null;
+            }
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    conn.getInputStream(), StandardCharsets.US_ASCII))) {
+                return parse(reader);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Unable to get the block manifest of " + buildUrl, e);
+            return null;
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    private static BlockManifest parse(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            throw new IllegalArgumentException("Empty manifest");
+        }
+        int blockSize = Integer.parseInt(line.trim());
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Unsupported block size " + blockSize);
+        }
+        List<byte[]> digests = new ArrayList<byte[]>();
+        List<Integer> weakSums = new ArrayList<Integer>();
+        boolean hasWeakSums = true;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            digests.add(parseHex(fields[0]));
+            if (fields.length > 1) {
+                weakSums.add((int) Long.parseLong(fields[1], 16));
+            } else {
+                hasWeakSums = false;
+            }
+        }
+        int[] weak = null;
+        if (hasWeakSums) {
+            weak = new int[weakSums.size()];
+            for (int i = 0; i < weak.length; i++) {
+                weak[i] = weakSums.get(i);
+            }
+        }
+        return new BlockManifest(blockSize, digests.toArray(new byte[digests.size()][]), weak);
+    }
+
+    private static byte[] parseHex(String hex) {
+        if (hex.length() != 64) {
+            throw new IllegalArgumentException("Not a SHA-256: " + hex);
+        }
+        byte[] bytes = new byte[32];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Not a SHA-256: " + hex);
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public int getBlockCount() {
+        return mDigests.length;
+    }
+
+    /**
+     * Whether the blocks have a rolling checksum, see {@link #getWeakSum}
+     */
+    public boolean hasWeakSums() {
+        return mWeakSums != null;
+    }
+
+    /**
+     * Get the {@link RollingChecksum} of the block at the given index
+     */
+    public int getWeakSum(int index) {
+        return mWeakSums[index];
+    }
+
+    /**
+     * Whether the manifest describes a file of this size
+     */
+    public boolean covers(long length) {
+        return (length + mBlockSize - 1) / mBlockSize == mDigests.length;
+    }
+
+    /**
+     * Check the content of the block at the given index
+     */
+    public boolean verify(long index, byte[] data, int length) {
+        return matches(index, hash(data, length));
+    }
+
+    /**
+     * Whether the block at the given index has this SHA-256
+     */
+    boolean matches(long index, byte[] sha256) {
+        return index >= 0 && index < mDigests.length
+                && MessageDigest.isEqual(sha256, mDigests[(int) index]);
+    }
+
+    static byte[] hash(byte[] data, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, 0, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds the blocks of a {@link BlockManifest} in a local file, typically the
+ * previous build, at any offset, the way rsync and zsync do.
+ *
+ * The local file is read once through a window of one block, sliding it a
+ * byte at a time. The {@link RollingChecksum} of the window is looked up
+ * among those of the wanted blocks and only a hit is confirmed with SHA-256.
+ * After a match the window jumps a whole block. Memory use doesn't depend on
+ * the size of the file: the window, a copy of it to hash and a read buffer.
+ */
+class BlockMatcher {
+    private static final String TAG = "BlockMatcher";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Bits of the table that rules out most windows without a map lookup
+    private static final int FILTER_BITS = 20;
+
+    private final BlockManifest mManifest;
+    private final int mBlockSize;
+    private volatile boolean mCancelled;
+
+    BlockMatcher(BlockManifest manifest) {
+        mManifest = manifest;
+        mBlockSize = manifest.getBlockSize();
+    }
+
+    /**
+     * Copy the wanted blocks found in the source to their place in the target
+     *
+     * Only full size blocks are looked for. Returns early, with what was found
+     * so far, if cancelled.
+     *
+     * @return the indexes of the blocks copied
+     */
+    BitSet match(File source, BitSet wanted, FileChannel target) throws IOException {
+        BitSet found = new BitSet();
+        Map<Integer, int[]> candidates = new HashMap<Integer, int[]>();
+        BitSet filter = new BitSet(1 << FILTER_BITS);
+        for (int index = wanted.nextSetBit(0); index >= 0; index = wanted.nextSetBit(index + 1)) {
+            int weak = mManifest.getWeakSum(index);
+            int[] indexes = candidates.get(weak);
+            if (indexes == null) {
+                indexes = new int[] { index };
+            } else {
+                int[] grown = new int[indexes.length + 1];
+                System.arraycopy(indexes, 0, grown, 0, indexes.length);
+                grown[indexes.length] = index;
+                indexes = grown;
+            }
+            candidates.put(weak, indexes);
+            filter.set(filterSlot(weak));
+        }
+        if (candidates.isEmpty() || source.length() < mBlockSize) {
+            return found;
+        }
+
+        byte[] window = new byte[mBlockSize];
+        byte[] block = new byte[mBlockSize];
+        RollingChecksum checksum = new RollingChecksum(mBlockSize);
+        try (InputStream in = new FileInputStream(source)) {
+            Reader reader = new Reader(in);
+            if (!reader.readFully(window)) {
+                return found;
+            }
+            checksum.reset(window, 0);
+            // Where the window starts in the ring
+            int head = 0;
+            while (!mCancelled) {
+                int weak = checksum.get();
+                boolean matched = false;
+                if (filter.get(filterSlot(weak))) {
+                    int[] indexes = candidates.get(weak);
+                    if (indexes != null) {
+                        System.arraycopy(window, head, block, 0, mBlockSize - head);
+                        System.arraycopy(window, 0, block, mBlockSize - head, head);
+                        matched = copyMatches(block, indexes, found, target);
+                    }
+                }
+                if (matched) {
+                    if (found.cardinality() == wanted.cardinality()
+                            || !reader.readFully(window)) {
+                        break;
+                    }
+                    checksum.reset(window, 0);
+                    head = 0;
+                } else {
+                    int next = reader.read();
+                    if (next < 0) {
+                        break;
+                    }
+                    checksum.roll(window[head], (byte) next);
+                    window[head] = (byte) next;
+                    head = head + 1 == mBlockSize ? 0 : head + 1;
+                }
+            }
+        }
+        Log.d(TAG, "Found " + found.cardinality() + " of " + wanted.cardinality()
+                + " blocks in " + source);
+        return found;
+    }
+
+    void cancel() {
+        mCancelled = true;
+    }
+
+    private boolean copyMatches(byte[] block, int[] indexes, BitSet found, FileChannel target)
+            throws IOException {
+        byte[] sha256 = null;
+        boolean matched = false;
+        for (int index : indexes) {
+            if (found.get(index)) {
+                continue;
+            }
+            if (sha256 == null) {
+                sha256 = BlockManifest.hash(block, mBlockSize);
+            }
+            if (!mManifest.matches(index, sha256)) {
+                continue;
+            }
+            ByteBuffer data = ByteBuffer.wrap(block);
+            long position = (long) index * mBlockSize;
+            while (data.hasRemaining()) {
+                position += target.write(data, position);
+            }
+            found.set(index);
+            matched = true;
+        }
+        return matched;
+    }
+
+    private static int filterSlot(int weak) {
+        return (weak ^ (weak >>> FILTER_BITS)) & ((1 << FILTER_BITS) - 1);
+    }
+
+    /** Buffered reads without the locking of BufferedInputStream */
+    private static class Reader {
+        private final InputStream mIn;
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private int mPosition;
+        private int mLimit;
+
+        Reader(InputStream in) {
+            mIn = in;
+        }
+
+        int read() throws IOException {
+            if (mPosition == mLimit && !fill()) {
+                return -1;
+            }
+            return mBuffer[mPosition++] & 0xff;
+        }
+
+        boolean readFully(byte[] data) throws IOException {
+            int filled = 0;
+            while (filled < data.length) {
+                if (mPosition == mLimit && !fill()) {
+                    return false;
+                }
+                int count = Math.min(data.length - filled, mLimit - mPosition);
+                System.arraycopy(mBuffer, mPosition, data, filled, count);
+                mPosition += count;
+                filled += count;
+            }
+            return true;
+        }
+
+        private boolean fill() throws IOException {
+            int read = mIn.read(mBuffer);
+            if (read <= 0) {
+                return false;
+            }
+            mPosition = 0;
+            mLimit = read;
+            return true;
+        }
+    }
+}
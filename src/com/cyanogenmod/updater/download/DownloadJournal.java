@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import android.text.TextUtils;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Checkpoint of a download in progress: where it comes from, which version of
+ * the file it is and which byte ranges of it are already on disk.
+ *
+ * Ranges are recorded in memory as they are written and only reach the
+ * journal file through {@link #checkpoint}, which syncs the data first, so
+ * the journal never claims bytes that could be lost. Like the update catalog,
+ * the file is replaced atomically.
+ */
+public class DownloadJournal {
+    private static final String TAG = "DownloadJournal";
+
+    public static final String EXTENSION = ".journal";
+
+    private static final int MAGIC = 0x434d554a; // "CMUJ"
+    // 2: added the expected SHA-256
+    // 3: added whether mobile data may be used
+    private static final int VERSION = 3;
+
+    private final AtomicFile mFile;
+    private final Object mCheckpointLock = new Object();
+
+    private String mUrl;
+    private long mLength = -1;
+    private String mValidator;
+    private String mSha256;
+    private boolean mMeteredAllowed;
+    // Start to end, exclusive, of the completed ranges. Never overlapping or adjacent.
+    private final TreeMap<Long, Long> mRanges = new TreeMap<Long, Long>();
+
+    public DownloadJournal(File file) {
+        mFile = new AtomicFile(file);
+        read();
+    }
+
+    /**
+     * Get the URL of the download
+     */
+    public synchronized String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * Get the size of the file being downloaded, -1 if unknown
+     */
+    public synchronized long getLength() {
+        return mLength;
+    }
+
+    /**
+     * Get the expected hex SHA-256 of the file, null if unknown
+     */
+    public synchronized String getSha256() {
+        return mSha256;
+    }
+
+    public synchronized void setSha256(String sha256) {
+        mSha256 = sha256;
+    }
+
+    /**
+     * Whether the user agreed to download over a metered network
+     */
+    public synchronized boolean isMeteredAllowed() {
+        return mMeteredAllowed;
+    }
+
+    public synchronized void setMeteredAllowed(boolean allowed) {
+        mMeteredAllowed = allowed;
+    }
+
+    /**
+     * Whether the ranges recorded so far apply to this version of the file
+     */
+    public synchronized boolean matches(String url, long length, String validator) {
+        return !TextUtils.isEmpty(validator)
+                && TextUtils.equals(url, mUrl)
+                && length == mLength
+                && TextUtils.equals(validator, mValidator);
+    }
+
+    /**
+     * Start over for the given version of the file
+     */
+    public synchronized void reset(String url, long length, String validator) {
+        mUrl = url;
+        mLength = length;
+        mValidator = validator;
+        mRanges.clear();
+    }
+
+    /**
+     * Record that the bytes from start to end, exclusive, are written
+     */
+    public synchronized void addRange(long start, long end) {
+        if (start >= end) {
+            return;
+        }
+        Map.Entry<Long, Long> before = mRanges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> next = mRanges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            mRanges.remove(next.getKey());
+            next = mRanges.ceilingEntry(start);
+        }
+        mRanges.put(start, end);
+    }
+
+    public synchronized long getCompletedBytes() {
+        long total = 0;
+        for (Map.Entry<Long, Long> range : mRanges.entrySet()) {
+            total += range.getValue() - range.getKey();
+        }
+        return total;
+    }
+
+    /**
+     * Get the completed ranges as start and end, exclusive, pairs
+     */
+    public synchronized List<long[]> getCompletedRanges() {
+        List<long[]> completed = new ArrayList<long[]>();
+        for (Map.Entry<Long, Long> range : mRanges.entrySet()) {
+            completed.add(new long[] { range.getKey(), range.getValue() });
+        }
+        return completed;
+    }
+
+    /**
+     * Get the ranges still to download as start and end, exclusive, pairs
+     */
+    public synchronized List<long[]> getMissingRanges() {
+        List<long[]> missing = new ArrayList<long[]>();
+        long position = 0;
+        for (Map.Entry<Long, Long> range : mRanges.entrySet()) {
+            if (range.getKey() > position) {
+                missing.add(new long[] { position, range.getKey() });
+            }
+            position = range.getValue();
+        }
+        if (position < mLength) {
+            missing.add(new long[] { position, mLength });
+        }
+        return missing;
+    }
+
+    /**
+     * Sync the data written so far and persist the ranges it covers
+     */
+    public void checkpoint(FileChannel data) throws IOException {
+        synchronized (mCheckpointLock) {
+            String url;
+            long length;
+            String validator;
+            String sha256;
+            boolean meteredAllowed;
+            TreeMap<Long, Long> ranges;
+            synchronized (this) {
+                url = mUrl;
+                length = mLength;
+                validator = mValidator;
+                sha256 = mSha256;
+                meteredAllowed = mMeteredAllowed;
+                ranges = new TreeMap<Long, Long>(mRanges);
+            }
+            // Only what was recorded before the sync is known to be on disk
+            data.force(false);
+            write(url, length, validator, sha256, meteredAllowed, ranges);
+        }
+    }
+
+    public void delete() {
+        synchronized (mCheckpointLock) {
+            mFile.delete();
+        }
+    }
+
+    private void write(String url, long length, String validator, String sha256,
+            boolean meteredAllowed, TreeMap<Long, Long> ranges) throws IOException {
+        FileOutputStream fos = mFile.startWrite();
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(url);
+            out.writeLong(length);
+            out.writeUTF(validator != null ? validator : "");
+            out.writeUTF(sha256 != null ? sha256 : "");
+            out.writeBoolean(meteredAllowed);
+            out.writeInt(ranges.size());
+            for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+                out.writeLong(range.getKey());
+                out.writeLong(range.getValue());
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            mFile.failWrite(fos);
+            throw e;
+        }
+    }
+
+    private synchronized void read() {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(mFile.openRead()))) {
+            if (in.readInt() != MAGIC) {
+                Log.d(TAG, "Unexpected journal format");
+                return;
+            }
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                Log.d(TAG, "Unsupported journal version " + version);
+                return;
+            }
+            String url = in.readUTF();
+            long length = in.readLong();
+            String validator = in.readUTF();
+            String sha256 = version >= 2 ? in.readUTF() : "";
+            // Older journals didn't ask, wait for an unmetered network
+            boolean meteredAllowed = version >= 3 && in.readBoolean();
+            int count = in.readInt();
+            TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+            for (int i = 0; i < count; i++) {
+                long start = in.readLong();
+                long end = in.readLong();
+                if (start < 0 || end > length || start >= end) {
+                    Log.e(TAG, "Corrupted journal range " + start + "-" + end);
+                    return;
+                }
+                ranges.put(start, end);
+            }
+            mUrl = url;
+            mLength = length;
+            mValidator = validator;
+            mSha256 = TextUtils.isEmpty(sha256) ? null : sha256;
+            mMeteredAllowed = meteredAllowed;
+            mRanges.putAll(ranges);
+        } catch (FileNotFoundException e) {
+            // Nothing downloaded yet
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read the download journal", e);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Progress of the in-app downloads, pushed to the listeners on the main thread.
+ *
+ * Publishers can report as often as they like, the updates are coalesced:
+ * listeners only get the latest progress, once it moved by at least a
+ * thousandth of the download and no more often than every MIN_INTERVAL.
+ * State changes skip the wait, unless an update is already on its way.
+ */
+public class DownloadProgress {
+    private static final long MIN_INTERVAL = 250; // 250 ms
+    // Resolution of the reported progress
+    private static final int STEPS = 1000;
+
+    public interface Listener {
+        /**
+         * @param state one of the SegmentedDownloader STATE_* constants
+         * @param totalBytes the size of the download, -1 if unknown
+         */
+        void onProgress(long downloadId, int state, long downloadedBytes, long totalBytes);
+    }
+
+    private static DownloadProgress sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    // Latest reported
+    private long mDownloadId = -1;
+    private int mState;
+    private long mDownloadedBytes;
+    private long mTotalBytes = -1;
+
+    // Last delivered
+    private long mDeliveredId = -1;
+    private int mDeliveredState;
+    private long mDeliveredBytes;
+    private long mLastDelivery;
+    private boolean mDeliveryPending;
+
+    private final Runnable mDeliver = new Runnable() {
+        @Override
+        public void run() {
+            long downloadId;
+            int state;
+            long downloadedBytes;
+            long totalBytes;
+            synchronized (DownloadProgress.this) {
+                mDeliveryPending = false;
+                mLastDelivery = SystemClock.elapsedRealtime();
+                downloadId = mDeliveredId = mDownloadId;
+                state = mDeliveredState = mState;
+                downloadedBytes = mDeliveredBytes = mDownloadedBytes;
+                totalBytes = mTotalBytes;
+            }
+            for (Listener listener : mListeners) {
+                listener.onProgress(downloadId, state, downloadedBytes, totalBytes);
+            }
+        }
+    };
+
+    public static synchronized DownloadProgress getInstance() {
+        if (sInstance == null) {
+            sInstance = new DownloadProgress();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Add a listener, it gets the latest progress right away
+     */
+    public void addListener(final Listener listener) {
+        mListeners.add(listener);
+        final long downloadId;
+        final int state;
+        final long downloadedBytes;
+        final long totalBytes;
+        synchronized (this) {
+            if (mDownloadId < 0) {
+                return;
+            }
+            downloadId = mDownloadId;
+            state = mState;
+            downloadedBytes = mDownloadedBytes;
+            totalBytes = mTotalBytes;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mListeners.contains(listener)) {
+                    listener.onProgress(downloadId, state, downloadedBytes, totalBytes);
+                }
+            }
+        });
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Report the progress of a download, from any thread
+     */
+    public void publish(long downloadId, int state, long downloadedBytes, long totalBytes) {
+        long delay;
+        synchronized (this) {
+            mDownloadId = downloadId;
+            mState = state;
+            mDownloadedBytes = downloadedBytes;
+            mTotalBytes = totalBytes;
+            if (mDeliveryPending) {
+                // Picks up the latest values when it runs
+                return;
+            }
+            boolean stateChanged = downloadId != mDeliveredId || state != mDeliveredState;
+            if (!stateChanged) {
+                long step = totalBytes > 0 ? totalBytes / STEPS : 0;
+                if (Math.abs(downloadedBytes - mDeliveredBytes) <= step) {
+                    return;
+                }
+            }
+            delay = stateChanged ? 0
+                    : Math.max(0, mLastDelivery + MIN_INTERVAL - SystemClock.elapsedRealtime());
+            mDeliveryPending = true;
+        }
+        mHandler.postDelayed(mDeliver, delay);
+    }
+}
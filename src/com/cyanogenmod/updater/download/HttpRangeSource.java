@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import android.text.TextUtils;
+
+import com.cyanogenmod.updater.utils.ZipIndex;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+
+/**
+ * Remote file read with HTTP range requests, to index a package on the
+ * update server without downloading it.
+ *
+ * The first request resolves redirects and all the following ones go to the
+ * same mirror, with If-Range, so every read comes from the same version of
+ * the file. A server that ignores ranges can't be used.
+ */
+public class HttpRangeSource implements ZipIndex.Source {
+    private static final int CONNECT_TIMEOUT = 15000; // 15 seconds
+    private static final int READ_TIMEOUT = 30000; // 30 seconds
+
+    private final String mUrl;
+    private final String mUserAgent;
+
+    private URL mResolvedUrl;
+    private String mValidator;
+    private long mSize = -1;
+
+    public HttpRangeSource(String url, String userAgent) {
+        mUrl = url;
+        mUserAgent = userAgent;
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+        if (mSize < 0) {
+            probe();
+        }
+        return mSize;
+    }
+
+    /**
+     * Get the URL the file is read from, after redirects
+     */
+    public synchronized String getResolvedUrl() throws IOException {
+        if (mResolvedUrl == null) {
+            probe();
+        }
+        return mResolvedUrl.toString();
+    }
+
+    @Override
+    public synchronized ByteBuffer read(long offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        if (length == 0) {
+            return ByteBuffer.wrap(data);
+        }
+        if (mResolvedUrl == null) {
+            probe();
+        }
+        HttpURLConnection conn = openConnection(mResolvedUrl);
+        try {
+            conn.setRequestProperty("Range", "bytes=" + offset + "-" + (offset + length - 1));
+            if (mValidator != null) {
+                // Get a 200 rather than parts of a different file
+                conn.setRequestProperty("If-Range", mValidator);
+            }
+            int code = conn.getResponseCode();
+            if (code != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Unexpected response code " + code + " for " + mUrl);
+            }
+            String contentRange = conn.getHeaderField("Content-Range");
+            if (contentRange == null || !contentRange.startsWith("bytes " + offset + "-")) {
+                throw new IOException("Unexpected range " + contentRange + " for " + mUrl);
+            }
+            try (InputStream in = conn.getInputStream()) {
+                new DataInputStream(in).readFully(data);
+            }
+        } finally {
+            conn.disconnect();
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    @Override
+    public void close() {
+        // Every request has its own connection
+    }
+
+    private void probe() throws IOException {
+        HttpURLConnection conn = openConnection(new URL(mUrl));
+        try {
+            conn.setRequestProperty("Range", "bytes=0-0");
+            int code = conn.getResponseCode();
+            if (code != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("No range support for " + mUrl + ", response code "
+                        + code);
+            }
+            long size = SegmentedDownloader.parseContentRangeLength(
+                    conn.getHeaderField("Content-Range"));
+            if (size < 0) {
+                throw new IOException("Unknown size of " + mUrl);
+            }
+            // Mirrors redirect per request, stick to the one we got
+            mResolvedUrl = conn.getURL();
+            mValidator = conn.getHeaderField("ETag");
+            if (TextUtils.isEmpty(mValidator)) {
+                mValidator = conn.getHeaderField("Last-Modified");
+            }
+            mSize = size;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private HttpURLConnection openConnection(URL url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        // Byte offsets must refer to the file itself
+        conn.setRequestProperty("Accept-Encoding", "identity");
+        if (mUserAgent != null) {
+            conn.setRequestProperty("User-Agent", mUserAgent);
+        }
+        return conn;
+    }
+}
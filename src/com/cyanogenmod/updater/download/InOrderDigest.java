@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * SHA-256 of a file that is written out of order.
+ *
+ * The digest can only consume the file from its start, so it follows the
+ * frontier of contiguous written bytes: whenever a write extends it, the new
+ * bytes are read back, from the page cache in practice, and hashed. Writes
+ * beyond the frontier wait until the gap before them is filled. Only one
+ * thread hashes at a time, the others just record their range and move on.
+ */
+class InOrderDigest {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final MessageDigest mDigest;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    // Written but not hashed yet, start to end, exclusive
+    private final TreeMap<Long, Long> mPending = new TreeMap<Long, Long>();
+    private long mFrontier;
+    private boolean mHashing;
+
+    InOrderDigest() {
+        try {
+            mDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Record that the bytes from start to end, exclusive, are written and hash
+     * whatever that makes contiguous
+     */
+    void onWritten(FileChannel channel, long start, long end) throws IOException {
+        synchronized (this) {
+            if (end <= start) {
+                return;
+            }
+            Long pendingEnd = mPending.get(start);
+            mPending.put(start, pendingEnd == null ? end : Math.max(end, pendingEnd));
+            if (mHashing) {
+                // Whoever is hashing will pick it up
+                return;
+            }
+            mHashing = true;
+        }
+
+        boolean done = false;
+        try {
+            while (true) {
+                long from;
+                long to;
+                synchronized (this) {
+                    Map.Entry<Long, Long> next = mPending.firstEntry();
+                    if (next == null || next.getKey() > mFrontier) {
+                        mHashing = false;
+                        done = true;
+                        return;
+                    }
+                    mPending.remove(next.getKey());
+                    from = mFrontier;
+                    to = Math.max(mFrontier, next.getValue());
+                }
+                hash(channel, from, to);
+                synchronized (this) {
+                    mFrontier = to;
+                }
+            }
+        } finally {
+            if (!done) {
+                synchronized (this) {
+                    mHashing = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of bytes hashed so far, all from the start of the file
+     */
+    synchronized long getHashedBytes() {
+        return mFrontier;
+    }
+
+    /**
+     * Get the hex digest, only meaningful once the whole file is hashed
+     */
+    synchronized String getHexDigest() {
+        byte[] digest = mDigest.digest();
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Forget everything, the file is written again from the start
+     */
+    synchronized void reset() {
+        mDigest.reset();
+        mPending.clear();
+        mFrontier = 0;
+    }
+
+    // Only called by the hashing thread
+    private void hash(FileChannel channel, long from, long to) throws IOException {
+        long position = from;
+        while (position < to) {
+            mBuffer.clear();
+            mBuffer.limit((int) Math.min(mBuffer.capacity(), to - position));
+            int read = channel.read(mBuffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            mDigest.update(mBuffer.array(), 0, read);
+            position += read;
+        }
+    }
+}
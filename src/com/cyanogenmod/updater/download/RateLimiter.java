@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket shared by all the connections of a download.
+ *
+ * Tokens, one per byte, accumulate at the configured rate up to a quarter of
+ * a second worth of them, so the traffic stays close to the rate instead of
+ * coming in bursts. Readers take tokens for what they just read and, when
+ * there aren't enough, reserve them and sleep until they would have been
+ * there. Reserving instead of waiting under the lock keeps the connections
+ * served in turn.
+ */
+public class RateLimiter {
+    private static final long BURST_MILLIS = 250;
+
+    private long mBytesPerSecond;
+    private long mCapacity;
+    // Negative when readers are waiting for tokens
+    private double mTokens;
+    private long mLastRefill;
+
+    /**
+     * @param bytesPerSecond the rate, 0 for unlimited
+     */
+    public RateLimiter(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    /**
+     * Change the rate, 0 for unlimited
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        refill();
+        mBytesPerSecond = Math.max(0, bytesPerSecond);
+        mCapacity = mBytesPerSecond * BURST_MILLIS / 1000;
+        mTokens = Math.min(mTokens, mCapacity);
+    }
+
+    public synchronized long getRate() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * Account for the bytes read, sleeping as long as needed to keep to the rate
+     */
+    public void acquire(int bytes) throws IOException {
+        long delay;
+        synchronized (this) {
+            if (mBytesPerSecond == 0) {
+                return;
+            }
+            refill();
+            mTokens -= bytes;
+            if (mTokens >= 0) {
+                return;
+            }
+            delay = (long) (-mTokens * 1000 / mBytesPerSecond);
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    private void refill() {
+        long now = SystemClock.elapsedRealtime();
+        if (mLastRefill != 0 && mBytesPerSecond > 0) {
+            mTokens = Math.min(mCapacity,
+                    mTokens + (now - mLastRefill) * mBytesPerSecond / 1000.0);
+        }
+        mLastRefill = now;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+/**
+ * The weak checksum of rsync over a fixed-size window: the low 16 bits are
+ * the sum of the bytes, the high 16 bits the sum of the bytes weighted by
+ * their distance to the end of the window. Sliding the window by one byte
+ * only takes the byte that leaves and the one that enters.
+ */
+class RollingChecksum {
+    private final int mWindow;
+    private int mA;
+    private int mB;
+
+    RollingChecksum(int window) {
+        mWindow = window;
+    }
+
+    /**
+     * Start over with the given window
+     */
+    void reset(byte[] data, int offset) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < mWindow; i++) {
+            int value = data[offset + i] & 0xff;
+            a += value;
+            b += (mWindow - i) * value;
+        }
+        mA = a;
+        mB = b;
+    }
+
+    /**
+     * Slide the window by one byte
+     */
+    void roll(byte out, byte in) {
+        mA += (in & 0xff) - (out & 0xff);
+        mB += mA - mWindow * (out & 0xff);
+    }
+
+    int get() {
+        return (mA & 0xffff) | (mB << 16);
+    }
+
+    /**
+     * Get the checksum of a whole window at once
+     */
+    static int of(byte[] data, int offset, int length) {
+        RollingChecksum checksum = new RollingChecksum(length);
+        checksum.reset(data, offset);
+        return checksum.get();
+    }
+}
@@ -0,0 +1,773 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a file over several HTTP connections at once.
+ *
+ * A first request for the first byte tells whether the server supports range
+ * requests and how big the file is. The destination is then allocated to its
+ * final size, reserving the space on disk when the filesystem allows it so
+ * a lack of space shows up before anything is downloaded. It is then split
+ * into segments, each fetched by its own connection with a Range request and
+ * written in place at its offset, so there is nothing to reassemble
+ * afterwards. Servers without range support get a single plain request.
+ * Failed segments are retried from where they stopped.
+ *
+ * With a {@link DownloadJournal}, the completed ranges are checkpointed as
+ * they come in, and a later download of the same version of the file only
+ * fetches the ranges that are missing.
+ *
+ * When the expected SHA-256 is known, the file is hashed as it comes in and
+ * checked as soon as the last byte is written. When the build has a
+ * {@link BlockManifest}, segments are read a block at a time and every block
+ * is checked before it is written, a corrupted block is fetched again. If the
+ * manifest also has rolling checksums, the blocks that can be found in a
+ * local seed file, like the previous build, are copied from it instead of
+ * being downloaded.
+ *
+ * A {@link RateLimiter} caps the throughput of all the connections together.
+ *
+ * {@link #download()} blocks until the download is over, {@link #cancel()}
+ * can be called from any thread.
+ */
+public class SegmentedDownloader {
+    private static final String TAG = "SegmentedDownloader";
+
+    public static final int STATE_PENDING = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_SUCCESSFUL = 2;
+    public static final int STATE_FAILED = 3;
+    public static final int STATE_CANCELLED = 4;
+
+    private static final int CONNECT_TIMEOUT = 15000; // 15 seconds
+    private static final int READ_TIMEOUT = 30000; // 30 seconds
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Don't bother opening a connection for less than this
+    private static final long MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_RETRIES = 3;
+    private static final long RETRY_DELAY = 2000; // 2 seconds, times the attempt
+    private static final long CHECKPOINT_INTERVAL = 2000; // 2 seconds
+
+    public interface ProgressListener {
+        /**
+         * Called on the download threads whenever something was written or
+         * the state changed, must be quick
+         */
+        void onProgress(int state, long downloadedBytes, long totalBytes);
+    }
+
+    private final String mUrl;
+    private final File mFile;
+    private final String mUserAgent;
+    private final int mMaxConnections;
+    private final DownloadJournal mJournal;
+
+    private final AtomicLong mDownloadedBytes = new AtomicLong();
+    private final Set<HttpURLConnection> mOpenConnections = new HashSet<HttpURLConnection>();
+    private volatile long mTotalBytes = -1;
+    private volatile int mState = STATE_PENDING;
+    private volatile boolean mCancelled;
+    private volatile boolean mAborted;
+    private final AtomicLong mLastCheckpoint = new AtomicLong();
+    private boolean mUseJournal;
+    private String mExpectedSha256;
+    private InOrderDigest mDigest;
+    private BlockManifest mManifest;
+    private File mSeedFile;
+    private volatile BlockMatcher mMatcher;
+    private RateLimiter mRateLimiter;
+    private ProgressListener mProgressListener;
+    private volatile boolean mCorrupted;
+    private volatile boolean mOutOfSpace;
+
+    // Set by the probe
+    private URL mResolvedUrl;
+    private String mValidator;
+    private boolean mAcceptRanges;
+
+    /**
+     * @param journal the checkpoints of the download, null to always start over
+     */
+    public SegmentedDownloader(String url, File file, DownloadJournal journal,
+            String userAgent, int maxConnections) {
+        mUrl = url;
+        mFile = file;
+        mJournal = journal;
+        mUserAgent = userAgent;
+        mMaxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * Get the file being downloaded to
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Check the downloaded file against this hex SHA-256
+     */
+    public void setExpectedSha256(String sha256) {
+        mExpectedSha256 = sha256;
+    }
+
+    /**
+     * Reuse the blocks of this file, if the build allows it
+     */
+    public void setSeedFile(File seedFile) {
+        mSeedFile = seedFile;
+    }
+
+    /**
+     * Keep the download under the rate of the given limiter
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        mRateLimiter = rateLimiter;
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+    }
+
+    /**
+     * Whether the download failed because the file doesn't match its SHA-256
+     */
+    public boolean isCorrupted() {
+        return mCorrupted;
+    }
+
+    /**
+     * Whether the download failed because there isn't enough space for the file
+     */
+    public boolean isOutOfSpace() {
+        return mOutOfSpace;
+    }
+
+    /**
+     * Get one of the STATE_* constants
+     */
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * Get the number of bytes on disk so far
+     */
+    public long getDownloadedBytes() {
+        return mDownloadedBytes.get();
+    }
+
+    /**
+     * Get the size of the file, -1 if not known yet or if the server didn't tell
+     */
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public void cancel() {
+        mCancelled = true;
+        abort();
+    }
+
+    /**
+     * Run the download on the calling thread
+     *
+     * @return the final state, one of STATE_SUCCESSFUL, STATE_FAILED or STATE_CANCELLED
+     */
+    public int download() {
+        mState = STATE_RUNNING;
+        reportProgress();
+        try {
+            probe();
+            if (mAcceptRanges) {
+                mManifest = BlockManifest.fetch(mUrl, mUserAgent);
+                if (mManifest != null && !mManifest.covers(mTotalBytes)) {
+                    Log.w(TAG, "Block manifest doesn't match the file size, ignoring it");
+                    mManifest = null;
+                }
+            }
+            fetch();
+            mState = STATE_SUCCESSFUL;
+        } catch (IOException e) {
+            if (mCancelled) {
+                Log.d(TAG, "Download of " + mUrl + " cancelled");
+                mState = STATE_CANCELLED;
+            } else {
+                Log.e(TAG, "Download of " + mUrl + " failed", e);
+                mState = STATE_FAILED;
+            }
+        }
+        reportProgress();
+        return mState;
+    }
+
+    private void reportProgress() {
+        if (mProgressListener != null) {
+            mProgressListener.onProgress(mState, mDownloadedBytes.get(), mTotalBytes);
+        }
+    }
+
+    private void probe() throws IOException {
+        HttpURLConnection conn = openConnection(new URL(mUrl));
+        try {
+            conn.setRequestProperty("Range", "bytes=0-0");
+            int code = conn.getResponseCode();
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                mAcceptRanges = true;
+                mTotalBytes = parseContentRangeLength(conn.getHeaderField("Content-Range"));
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                mAcceptRanges = false;
+                mTotalBytes = conn.getContentLengthLong();
+            } else {
+                throw new IOException("Unexpected response code " + code);
+            }
+            if (mAcceptRanges && mTotalBytes < 0) {
+                // Can't split what we can't measure
+                mAcceptRanges = false;
+            }
+            // Mirrors redirect per request, stick to the one we got
+            mResolvedUrl = conn.getURL();
+            mValidator = conn.getHeaderField("ETag");
+            if (TextUtils.isEmpty(mValidator)) {
+                mValidator = conn.getHeaderField("Last-Modified");
+            }
+        } finally {
+            closeConnection(conn);
+        }
+        Log.d(TAG, "Downloading " + mResolvedUrl + ", " + mTotalBytes + " bytes, "
+                + (mAcceptRanges ? "ranges supported" : "no range support"));
+    }
+
+    private void fetch() throws IOException {
+        List<long[]> missing = null;
+        if (mAcceptRanges) {
+            missing = getMissingRanges();
+            if (mManifest != null) {
+                missing = alignToBlocks(missing, mManifest.getBlockSize());
+            }
+        } else if (mJournal != null) {
+            // Nothing we could resume from
+            mJournal.delete();
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            allocate(raf);
+            final FileChannel channel = raf.getChannel();
+
+            if (!TextUtils.isEmpty(mExpectedSha256)) {
+                mDigest = new InOrderDigest();
+                if (mUseJournal) {
+                    // Catch up on what was downloaded before
+                    for (long[] range : mJournal.getCompletedRanges()) {
+                        mDigest.onWritten(channel, range[0], range[1]);
+                    }
+                }
+            }
+
+            try {
+                if (mManifest != null && mManifest.hasWeakSums()
+                        && mSeedFile != null && mSeedFile.isFile()) {
+                    missing = copyFromSeed(channel, missing);
+                }
+                List<Segment> segments = getSegments(missing);
+                reportProgress();
+                if (segments.size() == 1) {
+                    fetchWithRetries(channel, segments.get(0));
+                } else if (segments.size() > 1) {
+                    fetchInParallel(channel, segments);
+                }
+            } finally {
+                if (mUseJournal) {
+                    // Keep whatever made it, even on failure
+                    checkpoint(channel);
+                }
+            }
+            if (mTotalBytes < 0) {
+                mTotalBytes = mDownloadedBytes.get();
+            }
+            if (mDigest != null) {
+                checkDigest();
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Size the file and reserve its blocks, so they're laid out contiguously
+     * and the writes can't fail for lack of space
+     */
+    private void allocate(RandomAccessFile raf) throws IOException {
+        if (mTotalBytes <= 0) {
+            raf.setLength(0);
+            return;
+        }
+        if (raf.length() > mTotalBytes) {
+            raf.setLength(mTotalBytes);
+        }
+        try {
+            // Only allocates what's missing when resuming
+            Os.posix_fallocate(raf.getFD(), 0, mTotalBytes);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                mOutOfSpace = true;
+                throw new IOException("No space for " + mTotalBytes + " bytes", e);
+            }
+            Log.d(TAG, "Unable to preallocate " + mFile, e);
+            if (raf.length() != mTotalBytes) {
+                raf.setLength(mTotalBytes);
+            }
+        }
+    }
+
+    /**
+     * Split what's left to download into segments
+     *
+     * @param missing the missing ranges, null if ranges aren't supported
+     */
+    private List<Segment> getSegments(List<long[]> missing) {
+        List<Segment> segments = new ArrayList<Segment>();
+        if (missing == null) {
+            segments.add(new Segment(0, -1));
+            return segments;
+        }
+        long pending = 0;
+        for (long[] range : missing) {
+            pending += range[1] - range[0];
+        }
+        mDownloadedBytes.set(mTotalBytes - pending);
+        // Spread what's left over the connections
+        long size = Math.max(MIN_SEGMENT_SIZE,
+                (pending + mMaxConnections - 1) / mMaxConnections);
+        if (mManifest != null) {
+            int blockSize = mManifest.getBlockSize();
+            size = (size + blockSize - 1) / blockSize * blockSize;
+        }
+        for (long[] range : missing) {
+            for (long start = range[0]; start < range[1]; start += size) {
+                segments.add(new Segment(start, Math.min(start + size, range[1]) - 1));
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Copy the missing blocks that the seed file has
+     *
+     * @param missing the missing ranges, aligned to blocks
+     * @return the ranges still missing
+     */
+    private List<long[]> copyFromSeed(FileChannel channel, List<long[]> missing)
+            throws IOException {
+        int blockSize = mManifest.getBlockSize();
+        BitSet wanted = new BitSet();
+        for (long[] range : missing) {
+            wanted.set((int) (range[0] / blockSize),
+                    (int) ((range[1] + blockSize - 1) / blockSize));
+        }
+        if (mTotalBytes % blockSize != 0) {
+            // Only full blocks are looked for
+            wanted.clear(mManifest.getBlockCount() - 1);
+        }
+        if (wanted.isEmpty()) {
+            return missing;
+        }
+
+        mMatcher = new BlockMatcher(mManifest);
+        if (mAborted) {
+            mMatcher.cancel();
+        }
+        BitSet found = mMatcher.match(mSeedFile, wanted, channel);
+        mMatcher = null;
+
+        long reused = 0;
+        for (int index = found.nextSetBit(0); index >= 0; index = found.nextSetBit(index + 1)) {
+            long start = (long) index * blockSize;
+            if (mDigest != null) {
+                mDigest.onWritten(channel, start, start + blockSize);
+            }
+            if (mUseJournal) {
+                mJournal.addRange(start, start + blockSize);
+            }
+            reused += blockSize;
+        }
+        Log.i(TAG, "Reused " + reused + " of " + mTotalBytes + " bytes from " + mSeedFile);
+        if (mAborted) {
+            throw new IOException("Download aborted");
+        }
+
+        List<long[]> remaining = new ArrayList<long[]>();
+        for (long[] range : missing) {
+            long start = -1;
+            for (long position = range[0]; position < range[1]; position += blockSize) {
+                boolean have = found.get((int) (position / blockSize));
+                if (!have && start < 0) {
+                    start = position;
+                } else if (have && start >= 0) {
+                    remaining.add(new long[] { start, position });
+                    start = -1;
+                }
+            }
+            if (start >= 0) {
+                remaining.add(new long[] { start, range[1] });
+            }
+        }
+        return remaining;
+    }
+
+    private void checkDigest() throws IOException {
+        if (mDigest.getHashedBytes() != mTotalBytes) {
+            throw new IOException("Hashed " + mDigest.getHashedBytes() + " of "
+                    + mTotalBytes + " bytes");
+        }
+        String digest = mDigest.getHexDigest();
+        if (!digest.equalsIgnoreCase(mExpectedSha256)) {
+            mCorrupted = true;
+            if (mJournal != null) {
+                // The data on disk is of no use
+                mJournal.delete();
+            }
+            throw new IOException("SHA-256 mismatch, expected " + mExpectedSha256
+                    + ", got " + digest);
+        }
+        Log.d(TAG, "SHA-256 verified");
+    }
+
+    private List<long[]> getMissingRanges() {
+        mUseJournal = mJournal != null;
+        if (mUseJournal) {
+            if (mJournal.matches(mUrl, mTotalBytes, mValidator)) {
+                Log.d(TAG, "Resuming with " + mJournal.getCompletedBytes() + " bytes done");
+            } else {
+                mJournal.reset(mUrl, mTotalBytes, mValidator);
+            }
+            return mJournal.getMissingRanges();
+        }
+        List<long[]> missing = new ArrayList<long[]>();
+        missing.add(new long[] { 0, mTotalBytes });
+        return missing;
+    }
+
+    /**
+     * Widen the ranges to whole blocks, merging those that then overlap
+     */
+    private List<long[]> alignToBlocks(List<long[]> ranges, int blockSize) {
+        List<long[]> aligned = new ArrayList<long[]>();
+        for (long[] range : ranges) {
+            long start = range[0] / blockSize * blockSize;
+            long end = Math.min(mTotalBytes, (range[1] + blockSize - 1) / blockSize * blockSize);
+            long[] last = aligned.isEmpty() ? null : aligned.get(aligned.size() - 1);
+            if (last != null && last[1] >= start) {
+                last[1] = Math.max(last[1], end);
+            } else {
+                aligned.add(new long[] { start, end });
+            }
+        }
+        return aligned;
+    }
+
+    private void maybeCheckpoint(FileChannel channel) {
+        long now = SystemClock.elapsedRealtime();
+        long last = mLastCheckpoint.get();
+        if (now - last >= CHECKPOINT_INTERVAL && mLastCheckpoint.compareAndSet(last, now)) {
+            checkpoint(channel);
+        }
+    }
+
+    private void checkpoint(FileChannel channel) {
+        try {
+            mJournal.checkpoint(channel);
+        } catch (IOException e) {
+            // Just means more to download next time
+            Log.w(TAG, "Unable to checkpoint the download", e);
+        }
+    }
+
+    private void fetchInParallel(final FileChannel channel, List<Segment> segments)
+            throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(mMaxConnections, segments.size()));
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (final Segment segment : segments) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    fetchWithRetries(channel, segment);
+                    return null;
+                }
+            }));
+        }
+        executor.shutdown();
+
+        IOException error = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    error = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause() : new IOException(e.getCause());
+                    // No point in finishing the other segments
+                    abort();
+                }
+            } catch (InterruptedException e) {
+                abort();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void fetchWithRetries(FileChannel channel, Segment segment) throws IOException {
+        int attempt = 0;
+        while (true) {
+            long position = segment.position;
+            try {
+                fetchSegment(channel, segment);
+                return;
+            } catch (IOException e) {
+                if (segment.position > position) {
+                    // Got somewhere, only give up on consecutive failures
+                    attempt = 0;
+                }
+                if (mAborted || ++attempt > MAX_RETRIES) {
+                    throw e;
+                }
+                Log.w(TAG, "Segment " + segment + " failed, retrying", e);
+                try {
+                    Thread.sleep(RETRY_DELAY * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", ie);
+                }
+            }
+        }
+    }
+
+    private void fetchSegment(FileChannel channel, Segment segment) throws IOException {
+        if (segment.isComplete()) {
+            return;
+        }
+        HttpURLConnection conn = openConnection(mResolvedUrl);
+        try {
+            int expectedCode = HttpURLConnection.HTTP_OK;
+            if (mAcceptRanges) {
+                conn.setRequestProperty("Range",
+                        "bytes=" + segment.position + "-" + segment.end);
+                if (mValidator != null) {
+                    // Get a 200 with the whole new file rather than a mixed one
+                    conn.setRequestProperty("If-Range", mValidator);
+                }
+                expectedCode = HttpURLConnection.HTTP_PARTIAL;
+            } else if (segment.position > 0) {
+                // No way to pick up where we were
+                mDownloadedBytes.addAndGet(-segment.position);
+                segment.position = 0;
+                if (mDigest != null) {
+                    mDigest.reset();
+                }
+            }
+            int code = conn.getResponseCode();
+            if (code != expectedCode) {
+                throw new IOException("Unexpected response code " + code + " for " + segment);
+            }
+
+            try (InputStream in = conn.getInputStream()) {
+                if (mManifest != null) {
+                    readBlocks(in, channel, segment);
+                } else {
+                    readStream(in, channel, segment);
+                }
+            }
+            if (segment.end >= 0 && !segment.isComplete()) {
+                throw new IOException("Connection closed early for " + segment);
+            }
+        } finally {
+            closeConnection(conn);
+        }
+    }
+
+    private void readStream(InputStream in, FileChannel channel, Segment segment)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while (!segment.isComplete() && (read = in.read(buffer)) != -1) {
+            if (mAborted) {
+                throw new IOException("Download aborted");
+            }
+            if (segment.end >= 0) {
+                read = (int) Math.min(read, segment.end - segment.position + 1);
+            }
+            if (mRateLimiter != null) {
+                mRateLimiter.acquire(read);
+            }
+            write(channel, segment, buffer, read);
+        }
+    }
+
+    // Segments start on a block boundary and end on one or at the end of the file
+    private void readBlocks(InputStream in, FileChannel channel, Segment segment)
+            throws IOException {
+        int blockSize = mManifest.getBlockSize();
+        byte[] block = new byte[blockSize];
+        while (!segment.isComplete()) {
+            int length = (int) Math.min(blockSize, segment.end - segment.position + 1);
+            int filled = 0;
+            while (filled < length) {
+                // No more than a buffer at a time, for the rate limiter
+                int read = in.read(block, filled, Math.min(BUFFER_SIZE, length - filled));
+                if (read == -1) {
+                    return;
+                }
+                if (mAborted) {
+                    throw new IOException("Download aborted");
+                }
+                if (mRateLimiter != null) {
+                    mRateLimiter.acquire(read);
+                }
+                filled += read;
+            }
+            long index = segment.position / blockSize;
+            if (!mManifest.verify(index, block, length)) {
+                // Nothing written, the retry starts over from this block
+                throw new IOException("Block " + index + " is corrupted");
+            }
+            write(channel, segment, block, length);
+        }
+    }
+
+    private void write(FileChannel channel, Segment segment, byte[] buffer, int length)
+            throws IOException {
+        long start = segment.position;
+        ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+        while (data.hasRemaining()) {
+            segment.position += channel.write(data, segment.position);
+        }
+        mDownloadedBytes.addAndGet(length);
+        reportProgress();
+        if (mDigest != null) {
+            mDigest.onWritten(channel, start, segment.position);
+        }
+        if (mUseJournal) {
+            mJournal.addRange(start, segment.position);
+            maybeCheckpoint(channel);
+        }
+    }
+
+    private HttpURLConnection openConnection(URL url) throws IOException {
+        if (mAborted) {
+            throw new IOException("Download aborted");
+        }
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        // Byte offsets must refer to the file itself
+        conn.setRequestProperty("Accept-Encoding", "identity");
+        if (mUserAgent != null) {
+            conn.setRequestProperty("User-Agent", mUserAgent);
+        }
+        synchronized (mOpenConnections) {
+            mOpenConnections.add(conn);
+        }
+        return conn;
+    }
+
+    private void closeConnection(HttpURLConnection conn) {
+        synchronized (mOpenConnections) {
+            mOpenConnections.remove(conn);
+        }
+        conn.disconnect();
+    }
+
+    private void abort() {
+        mAborted = true;
+        BlockMatcher matcher = mMatcher;
+        if (matcher != null) {
+            matcher.cancel();
+        }
+        List<HttpURLConnection> connections;
+        synchronized (mOpenConnections) {
+            connections = new ArrayList<HttpURLConnection>(mOpenConnections);
+        }
+        // Unblocks the reads
+        for (HttpURLConnection conn : connections) {
+            conn.disconnect();
+        }
+    }
+
+    static long parseContentRangeLength(String contentRange) {
+        // bytes 0-0/1234
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            // "*", the length is unknown
+            return -1;
+        }
+    }
+
+    private static class Segment {
+        final long start;
+        // Inclusive, -1 if the segment runs until the end of the response
+        final long end;
+        volatile long position;
+
+        Segment(long start, long end) {
+            this.start = start;
+            this.end = end;
+            this.position = start;
+        }
+
+        boolean isComplete() {
+            return end >= 0 && position > end;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + start + "-" + end + "]@" + position;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.misc;
+
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The fields encoded in a build file name, e.g.
+ * lineage-14.1-20170101-NIGHTLY-device-signed.zip
+ *
+ * The name is parsed in a single scan without regular expressions or date
+ * formatters, and the results are memoised since the same names are parsed
+ * on every refresh of the update list.
+ */
+public class BuildFileName {
+    private static final String TAG = "BuildFileName";
+
+    private static final String INVALID_VERSION = "????";
+    private static final String INVALID_TYPE = "???????";
+    private static final int MAX_FIELDS = 5;
+    private static final int CACHE_SIZE = 64;
+
+    private static final Map<String, BuildFileName> sCache =
+            new LinkedHashMap<String, BuildFileName>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BuildFileName> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private static String sDeviceType;
+
+    private final String mVersion;
+    private final long mTimestamp;
+    private final String mType;
+    private final String mDevice;
+    private final String mUiName;
+
+    private BuildFileName(String version, long timestamp, String type, String device,
+            String uiName) {
+        mVersion = version;
+        mTimestamp = timestamp;
+        mType = type;
+        mDevice = device;
+        mUiName = uiName;
+    }
+
+    public static BuildFileName parse(String fileName) {
+        synchronized (sCache) {
+            BuildFileName result = sCache.get(fileName);
+            if (result == null) {
+                if (sDeviceType == null) {
+                    sDeviceType = InstalledBuild.get().getDevice();
+                }
+                result = parse(fileName, sDeviceType);
+                sCache.put(fileName, result);
+            }
+            return result;
+        }
+    }
+
+    static BuildFileName parse(String fileName, String deviceType) {
+        // Bounds of the first dash separated fields, anything after the last one is ignored
+        int[] starts = new int[MAX_FIELDS];
+        int[] ends = new int[MAX_FIELDS];
+        int fields = 0;
+        int start = 0;
+        while (fields < MAX_FIELDS) {
+            int dash = fileName.indexOf('-', start);
+            starts[fields] = start;
+            ends[fields] = dash < 0 ? fileName.length() : dash;
+            fields++;
+            if (dash < 0) {
+                break;
+            }
+            start = dash + 1;
+        }
+
+        String version = INVALID_VERSION;
+        if (fields > 1 && ends[1] - starts[1] >= 4) {
+            version = fileName.substring(starts[1], ends[1]);
+        }
+
+        long timestamp = 0;
+        if (fields > 2 && ends[2] - starts[2] >= 8) {
+            timestamp = parseDate(fileName, starts[2]);
+        }
+
+        String type = INVALID_TYPE;
+        if (fields > 3 && ends[3] - starts[3] >= 7) {
+            type = fileName.substring(starts[3], ends[3]);
+        }
+
+        String device = null;
+        if (fields > 4) {
+            int end = ends[4];
+            int dot = fileName.indexOf('.', starts[4]);
+            if (dot >= 0 && dot < end) {
+                end = dot;
+            }
+            device = fileName.substring(starts[4], end);
+        }
+
+        if (version == INVALID_VERSION || timestamp == 0 || type == INVALID_TYPE) {
+            Log.e(TAG, "The given filename is not valid: " + fileName);
+        }
+
+        return new BuildFileName(version, timestamp, type, device,
+                makeUiName(fileName, deviceType));
+    }
+
+    /**
+     * Parse the yyyyMMdd date at the given offset to seconds since the epoch, in UTC
+     */
+    private static long parseDate(String s, int offset) {
+        int value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+            value = value * 10 + (c - '0');
+        }
+        int year = value / 10000;
+        int month = value / 100 % 100;
+        int day = value % 100;
+        if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            return 0;
+        }
+        return daysFromCivil(year, month, day) * 86400;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+                return leap ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    // Days since 1970-01-01 of a proleptic Gregorian date
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    /**
+     * Strip the "(-signed).zip" suffix and every "-device(-)" occurrence
+     */
+    private static String makeUiName(String fileName, String deviceType) {
+        int end = fileName.length();
+        if (fileName.endsWith(".zip")) {
+            end -= 4;
+            if (fileName.startsWith("-signed", end - 7)) {
+                end -= 7;
+            }
+        }
+
+        String token = "-" + (deviceType == null ? "" : deviceType);
+        StringBuilder uiName = null;
+        int copied = 0;
+        int match = fileName.indexOf(token);
+        while (match >= 0 && match + token.length() <= end) {
+            if (uiName == null) {
+                uiName = new StringBuilder(end);
+            }
+            uiName.append(fileName, copied, match);
+            copied = match + token.length();
+            if (copied < end && fileName.charAt(copied) == '-') {
+                copied++;
+            }
+            match = fileName.indexOf(token, copied);
+        }
+
+        if (uiName == null) {
+            return fileName.substring(0, end);
+        }
+        return uiName.append(fileName, copied, end).toString();
+    }
+
+    /**
+     * Get the version, "????" if the name is not valid
+     */
+    public String getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Get the build date in seconds since the epoch, 0 if the name is not valid
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Get the build type, "???????" if the name is not valid
+     */
+    public String getType() {
+        return mType;
+    }
+
+    /**
+     * Get the device name, null if the name doesn't contain one
+     */
+    public String getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * Get name for UI display
+     */
+    public String getUiName() {
+        return mUiName;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.misc;
+
+import java.util.Comparator;
+
+/**
+ * Orders builds by a single long key, so that sorting and picking the newest
+ * build are plain primitive comparisons. From the most to the least
+ * significant bits the key packs:
+ *
+ *   major version   8 bits
+ *   minor version   8 bits
+ *   build date     32 bits, seconds since the epoch
+ *   API level       8 bits
+ *   build type      4 bits, see {@link #getTypeRank}
+ *
+ * Fields that are missing or don't parse count as 0, so such builds sort
+ * before any build that has them.
+ */
+public class BuildOrder {
+    private static final int TYPE_BITS = 4;
+    private static final int API_BITS = 8;
+    private static final int DATE_BITS = 32;
+    private static final int VERSION_BITS = 8;
+
+    private static final String[] TYPES = {
+        "experimental", "unofficial", "nightly", "snapshot", "release"
+    };
+
+    /**
+     * Newest build first
+     */
+    public static final Comparator<UpdateInfo> NEWEST_FIRST = new Comparator<UpdateInfo>() {
+        @Override
+        public int compare(UpdateInfo lhs, UpdateInfo rhs) {
+            return Long.compare(rhs.getOrderingKey(), lhs.getOrderingKey());
+        }
+    };
+
+    private BuildOrder() {
+    }
+
+    public static long getKey(String version, long buildDate, int apiLevel, String type) {
+        int major = 0;
+        int minor = 0;
+        if (version != null) {
+            int dot = version.indexOf('.');
+            major = parseNumber(version, 0);
+            if (dot >= 0) {
+                minor = parseNumber(version, dot + 1);
+            }
+        }
+
+        long key = clamp(major, VERSION_BITS);
+        key = (key << VERSION_BITS) | clamp(minor, VERSION_BITS);
+        key = (key << DATE_BITS) | clamp(buildDate, DATE_BITS);
+        key = (key << API_BITS) | clamp(apiLevel, API_BITS);
+        key = (key << TYPE_BITS) | getTypeRank(type);
+        return key;
+    }
+
+    /**
+     * Get the rank of a build type, 0 if unknown and higher for builds meant
+     * for a wider audience
+     */
+    public static int getTypeRank(String type) {
+        if (type == null) {
+            return 0;
+        }
+        for (int i = 0; i < TYPES.length; i++) {
+            if (TYPES[i].equalsIgnoreCase(type)) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    // Leading decimal digits of s starting at offset, 0 if there are none
+    private static int parseNumber(String s, int offset) {
+        int value = 0;
+        for (int i = offset; i < s.length() && value <= 0xffff; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static long clamp(long value, int bits) {
+        long max = (1L << bits) - 1;
+        return value < 0 ? 0 : Math.min(value, max);
+    }
+}
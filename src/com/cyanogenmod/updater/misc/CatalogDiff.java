@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.misc;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+/**
+ * Difference between two update catalogs, computed in linear time with hash
+ * lookups on {@link UpdateInfo} identity. The lists keep the order of the
+ * catalog the entries come from.
+ */
+public class CatalogDiff {
+    private final LinkedList<UpdateInfo> mAdded = new LinkedList<UpdateInfo>();
+    private final LinkedList<UpdateInfo> mRemoved = new LinkedList<UpdateInfo>();
+    private final LinkedList<UpdateInfo> mUnchanged = new LinkedList<UpdateInfo>();
+
+    private CatalogDiff() {
+        // Use compute()
+    }
+
+    public static CatalogDiff compute(Collection<UpdateInfo> previous,
+            Collection<UpdateInfo> current) {
+        CatalogDiff diff = new CatalogDiff();
+        HashSet<UpdateInfo> previousSet = new HashSet<UpdateInfo>(previous);
+        HashSet<UpdateInfo> currentSet = new HashSet<UpdateInfo>(current);
+
+        for (UpdateInfo ui : current) {
+            if (previousSet.contains(ui)) {
+                diff.mUnchanged.add(ui);
+            } else {
+                diff.mAdded.add(ui);
+            }
+        }
+        for (UpdateInfo ui : previous) {
+            if (!currentSet.contains(ui)) {
+                diff.mRemoved.add(ui);
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * Get the updates that are only in the current catalog
+     */
+    public LinkedList<UpdateInfo> getAdded() {
+        return mAdded;
+    }
+
+    /**
+     * Get the updates that are only in the previous catalog
+     */
+    public LinkedList<UpdateInfo> getRemoved() {
+        return mRemoved;
+    }
+
+    /**
+     * Get the updates that are in both catalogs
+     */
+    public LinkedList<UpdateInfo> getUnchanged() {
+        return mUnchanged;
+    }
+}
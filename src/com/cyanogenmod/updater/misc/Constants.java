@@ -16,6 +16,22 @@ public class Constants {
     public static final String DOWNLOAD_ID = "download_id";
     public static final String DOWNLOAD_NAME = "download_name";
     public static final String DOWNLOAD_TMP_EXT = ".tmp";
+    public static final String DOWNLOAD_PART_EXT = ".part";
+    public static final String PREFETCH_NAME = "prefetch_name";
+    // Where A/B packages are staged for update_engine
+    public static final String AB_PACKAGE_DIR = "/data/ota_package";
+    // Whether the last package couldn't be linked there and its payload was copied
+    public static final String AB_PACKAGE_LINK_FAILED = "ab_package_link_failed";
+
+    // A/B install related
+    public static final String AB_INSTALL_STATE = "ab_install_state";
+    public static final String AB_INSTALL_NAME = "ab_install_name";
+    public static final String AB_INSTALL_URL = "ab_install_url";
+    public static final String AB_INSTALL_PAYLOAD_URL = "ab_install_payload_url";
+    public static final String AB_INSTALL_PAYLOAD_OFFSET = "ab_install_payload_offset";
+    public static final String AB_INSTALL_PAYLOAD_SIZE = "ab_install_payload_size";
+    public static final String AB_INSTALL_PAYLOAD_PROPERTIES = "ab_install_payload_properties";
+    public static final String AB_INSTALL_BOOT_COUNT = "ab_install_boot_count";
 
     // Preferences
     public static final String ENABLE_PREF = "pref_enable_updates";
@@ -23,9 +39,14 @@ public class Constants {
     public static final String UPDATE_TYPE_PREF = "pref_update_type";
     public static final String LAST_UPDATE_CHECK_PREF = "pref_last_update_check";
     public static final String IGNORE_MOBILE_DATA_WARNING_PREF = "pref_ignore_mobile_data_warning";
+    public static final String DOWNLOAD_RATE_LIMIT_PREF = "pref_download_rate_limit";
+    public static final String PREFETCH_PREF = "pref_prefetch_updates";
 
     // Update Check items
     public static final String BOOT_CHECK_COMPLETED = "boot_check_completed";
+    public static final String UPDATE_CHECK_URL = "update_check_url";
+    public static final String UPDATE_CHECK_ETAG = "update_check_etag";
+    public static final String UPDATE_CHECK_LAST_MODIFIED = "update_check_last_modified";
     public static final int UPDATE_FREQ_NONE = -2;
     public static final int UPDATE_FREQ_DAILY = 86400;
     public static final int UPDATE_FREQ_WEEKLY = 604800;
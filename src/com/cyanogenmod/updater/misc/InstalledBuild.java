@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.misc;
+
+import android.os.Build;
+import android.os.SystemProperties;
+
+import java.util.Locale;
+
+/**
+ * Immutable snapshot of the properties of the installed build. The system
+ * properties are read once per process, everything comparing against the
+ * installed build should go through {@link #get()}.
+ */
+public class InstalledBuild {
+    private static InstalledBuild sInstance;
+
+    private final String mDevice;
+    private final String mVersion;
+    private final int mApiLevel;
+    private final long mBuildDate;
+    private final String mBuildType;
+    private final String mIncremental;
+    private final String mAndroidVersion;
+    private final long mOrderingKey;
+
+    private UpdateInfo mUpdateInfo;
+
+    public InstalledBuild(String device, String version, int apiLevel, long buildDate,
+            String buildType, String incremental, String androidVersion) {
+        mDevice = device;
+        mVersion = version;
+        mApiLevel = apiLevel;
+        mBuildDate = buildDate;
+        mBuildType = buildType;
+        mIncremental = incremental;
+        mAndroidVersion = androidVersion;
+        mOrderingKey = BuildOrder.getKey(getVersionName(), buildDate, apiLevel, buildType);
+    }
+
+    public static synchronized InstalledBuild get() {
+        if (sInstance == null) {
+            sInstance = new InstalledBuild(
+                    SystemProperties.get("ro.cm.device"),
+                    SystemProperties.get("ro.cm.version").toLowerCase(Locale.ROOT),
+                    SystemProperties.getInt("ro.build.version.sdk", 0),
+                    SystemProperties.getLong("ro.build.date.utc", 0),
+                    SystemProperties.get(Constants.PROPERTY_CM_RELEASETYPE,
+                            Constants.CM_RELEASE_TYPE_DEFAULT).toLowerCase(Locale.ROOT),
+                    SystemProperties.get("ro.build.version.incremental"),
+                    Build.VERSION.RELEASE);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Replace the snapshot, for tests
+     */
+    public static synchronized void set(InstalledBuild build) {
+        sInstance = build;
+    }
+
+    /**
+     * Get the device name
+     */
+    public String getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * Get the full version, e.g. 14.1-20170101-nightly-device
+     */
+    public String getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Get the version name, e.g. 14.1
+     */
+    public String getVersionName() {
+        return mVersion.split("-")[0];
+    }
+
+    /**
+     * Get API level
+     */
+    public int getApiLevel() {
+        return mApiLevel;
+    }
+
+    /**
+     * Get build date
+     */
+    public long getBuildDate() {
+        return mBuildDate;
+    }
+
+    /**
+     * Get build type
+     */
+    public String getBuildType() {
+        return mBuildType;
+    }
+
+    /**
+     * Get the incremental build version
+     */
+    public String getIncremental() {
+        return mIncremental;
+    }
+
+    /**
+     * Get the Android release version
+     */
+    public String getAndroidVersion() {
+        return mAndroidVersion;
+    }
+
+    /**
+     * Get the key ordering this build against updates
+     *
+     * @see BuildOrder
+     */
+    public long getOrderingKey() {
+        return mOrderingKey;
+    }
+
+    /**
+     * Get the name of the package this build was installed from
+     */
+    public String getFileName() {
+        return "lineage-" + mVersion + ".zip";
+    }
+
+    public synchronized UpdateInfo getUpdateInfo() {
+        if (mUpdateInfo == null) {
+            mUpdateInfo = new UpdateInfo.Builder()
+                    .setFileName(getFileName())
+                    .setVersion(getVersionName())
+                    .setApiLevel(mApiLevel)
+                    .setBuildDate(mBuildDate)
+                    .setType(mBuildType)
+                    .build();
+        }
+        return mUpdateInfo;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.misc;
+
+import android.text.TextUtils;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.cyanogenmod.updater.utils.ZipIndex;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What is known about a downloaded package: whether it's an A/B update, where
+ * its payload is, the payload properties, its SHA-256 and whether its
+ * signature was verified.
+ *
+ * The package is only read the first time, the result is kept in memory and
+ * in "<package>.meta" next to it. Both are keyed by the path, size and
+ * modification time of the package, so a package that changed is read again.
+ */
+public class PackageMetadata {
+    private static final String TAG = "PackageMetadata";
+
+    public static final String EXTENSION = ".meta";
+
+    private static final int MAGIC = 0x434d554d; // "CMUM"
+    private static final int VERSION = 1;
+    private static final int MAX_PROPERTIES_SIZE = 64 * 1024;
+
+    private static final String PAYLOAD_FILE = "payload.bin";
+    private static final String PROPERTIES_FILE = "payload_properties.txt";
+
+    private static final List<String> NON_AB_FILES = Arrays.asList(
+            "file_contexts.bin",
+            "install/bin/backuptool.functions",
+            "install/bin/backuptool.sh",
+            "install/bin/otasigcheck.sh",
+            "system.patch.dat",
+            "system/build.prop",
+            "META-INF/org/lineageos/releasekey",
+            "META-INF/com/google/android/updater-script",
+            "META-INF/com/google/android/update-binary",
+            "system.new.dat",
+            "boot.img",
+            "system.transfer.list");
+
+    private static final List<String> AB_FILES = Arrays.asList(
+            PROPERTIES_FILE,
+            "care_map.txt",
+            PAYLOAD_FILE);
+
+    private static final Map<String, PackageMetadata> sCache =
+            new HashMap<String, PackageMetadata>();
+
+    private final String mPath;
+    private final long mSize;
+    private final long mLastModified;
+    private boolean mABUpdate;
+    private long mPayloadOffset = -1;
+    private long mPayloadSize = -1;
+    private String[] mPayloadProperties = new String[0];
+    private String mSha256;
+    private boolean mVerified;
+
+    private PackageMetadata(String path, long size, long lastModified) {
+        mPath = path;
+        mSize = size;
+        mLastModified = lastModified;
+    }
+
+    /**
+     * Get the metadata of a package, reading the package only if needed
+     */
+    public static synchronized PackageMetadata get(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+
+        PackageMetadata metadata = sCache.get(path);
+        if (metadata != null && metadata.matches(path, size, lastModified)) {
+            return metadata;
+        }
+        metadata = read(getMetadataFile(file));
+        if (metadata == null || !metadata.matches(path, size, lastModified)) {
+            metadata = scan(file, path, size, lastModified);
+            metadata.write(getMetadataFile(file));
+        }
+        sCache.put(path, metadata);
+        return metadata;
+    }
+
+    /**
+     * Get the metadata of a package that isn't stored locally, without caching it
+     *
+     * @param name what the package is known as, e.g. its URL
+     */
+    public static PackageMetadata get(ZipIndex zip, String name, long size)
+            throws IOException {
+        PackageMetadata metadata = new PackageMetadata(name, size, 0);
+        metadata.scan(zip);
+        return metadata;
+    }
+
+    /**
+     * Record that the signature of a package was verified
+     *
+     * @param sha256 the hex SHA-256 of the package, null if unknown
+     */
+    public static synchronized void setVerified(File file, String sha256) throws IOException {
+        PackageMetadata metadata = get(file);
+        metadata.mVerified = true;
+        if (sha256 != null) {
+            metadata.mSha256 = sha256;
+        }
+        metadata.write(getMetadataFile(file));
+    }
+
+    /**
+     * Forget about a package, to be called when it's deleted
+     */
+    public static synchronized void delete(File file) {
+        sCache.remove(file.getAbsolutePath());
+        getMetadataFile(file).delete();
+    }
+
+    public boolean isABUpdate() {
+        return mABUpdate;
+    }
+
+    /**
+     * Get the offset of the payload in the package, -1 if it can't be applied
+     * from the package
+     */
+    public long getPayloadOffset() {
+        return mPayloadOffset;
+    }
+
+    /**
+     * Get the size of the payload, -1 if unknown
+     */
+    public long getPayloadSize() {
+        return mPayloadSize;
+    }
+
+    /**
+     * Get the lines of payload_properties.txt
+     */
+    public String[] getPayloadProperties() {
+        return mPayloadProperties.clone();
+    }
+
+    /**
+     * Get the hex SHA-256 of the package, null if unknown
+     */
+    public String getSha256() {
+        return mSha256;
+    }
+
+    /**
+     * Whether the signature of the package was verified
+     */
+    public boolean isVerified() {
+        return mVerified;
+    }
+
+    private boolean matches(String path, long size, long lastModified) {
+        return mPath.equals(path) && mSize == size && mLastModified == lastModified;
+    }
+
+    private static File getMetadataFile(File file) {
+        return new File(file.getPath() + EXTENSION);
+    }
+
+    private static PackageMetadata scan(File file, String path, long size, long lastModified)
+            throws IOException {
+        PackageMetadata metadata = new PackageMetadata(path, size, lastModified);
+        try (ZipIndex zip = ZipIndex.open(file)) {
+            metadata.scan(zip);
+        }
+        return metadata;
+    }
+
+    private void scan(ZipIndex zip) throws IOException {
+        // The first telling entry decides
+        for (ZipIndex.Entry entry : zip.getEntries()) {
+            String name = entry.getName();
+            if (NON_AB_FILES.contains(name)) {
+                break;
+            } else if (AB_FILES.contains(name)) {
+                mABUpdate = true;
+                break;
+            }
+        }
+        if (!mABUpdate) {
+            return;
+        }
+
+        ZipIndex.Entry payload = zip.getEntry(PAYLOAD_FILE);
+        ZipIndex.Entry properties = zip.getEntry(PROPERTIES_FILE);
+        if (payload == null || properties == null) {
+            Log.w(TAG, "Incomplete A/B package " + mPath);
+            return;
+        }
+        mPayloadSize = payload.getSize();
+        // update_engine reads the payload in place, it must be stored
+        if (payload.getMethod() == ZipIndex.METHOD_STORED) {
+            mPayloadOffset = zip.getDataOffset(payload);
+        } else {
+            Log.w(TAG, "Compressed payload in " + mPath);
+        }
+        String text = new String(zip.readEntry(properties, MAX_PROPERTIES_SIZE),
+                StandardCharsets.UTF_8);
+        mPayloadProperties = text.split("\\r?\\n");
+    }
+
+    private static PackageMetadata read(File metadataFile) {
+        AtomicFile file = new AtomicFile(metadataFile);
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(file.openRead()))) {
+            if (in.readInt() != MAGIC) {
+                Log.d(TAG, "Unexpected metadata format");
+                return null;
+            }
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                Log.d(TAG, "Unsupported metadata version " + version);
+                return null;
+            }
+            PackageMetadata metadata = new PackageMetadata(in.readUTF(), in.readLong(),
+                    in.readLong());
+            metadata.mABUpdate = in.readBoolean();
+            metadata.mPayloadOffset = in.readLong();
+            metadata.mPayloadSize = in.readLong();
+            int count = in.readInt();
+            if (count < 0 || count > MAX_PROPERTIES_SIZE) {
+                Log.e(TAG, "Corrupted metadata " + metadataFile);
+                return null;
+            }
+            metadata.mPayloadProperties = new String[count];
+            for (int i = 0; i < count; i++) {
+                metadata.mPayloadProperties[i] = in.readUTF();
+            }
+            String sha256 = in.readUTF();
+            metadata.mSha256 = TextUtils.isEmpty(sha256) ? null : sha256;
+            metadata.mVerified = in.readBoolean();
+            return metadata;
+        } catch (FileNotFoundException e) {
+            // Never read yet
+            return null;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + metadataFile, e);
+            return null;
+        }
+    }
+
+    private void write(File metadataFile) {
+        AtomicFile file = new AtomicFile(metadataFile);
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mPath);
+            out.writeLong(mSize);
+            out.writeLong(mLastModified);
+            out.writeBoolean(mABUpdate);
+            out.writeLong(mPayloadOffset);
+            out.writeLong(mPayloadSize);
+            out.writeInt(mPayloadProperties.length);
+            for (String property : mPayloadProperties) {
+                out.writeUTF(property);
+            }
+            out.writeUTF(mSha256 != null ? mSha256 : "");
+            out.writeBoolean(mVerified);
+            out.flush();
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            // Only a cache, the package is read again next time
+            Log.e(TAG, "Unable to write " + metadataFile, e);
+            if (fos != null) {
+                file.failWrite(fos);
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 /*
  * Copyright (C) 2012 The CyanogenMod Project
+ * Copyright (C) 2017 The LineageOS Project
  *
  * * Licensed under the GNU GPLv2 license
  *
@@ -10,56 +11,283 @@
 package com.cyanogenmod.updater.misc;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.AtomicFile;
 import android.util.Log;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.LinkedList;
+import java.util.zip.CRC32;
 
+/**
+ * Persists the last fetched update catalog.
+ *
+ * The file starts with a fixed header: magic, format version, entry count,
+ * payload length and the CRC32 of the payload. The payload is the list of
+ * entries, each one a fixed sequence of fields where strings are stored as
+ * an int length (-1 for null) followed by their UTF-8 bytes. New fields must
+ * be appended to the entry and guarded by a format version check on read.
+ *
+ * Writes go through {@link AtomicFile}, so a process kill mid-write leaves
+ * the previous catalog intact. All file access is serialized on one lock,
+ * AtomicFile doesn't cope with a reader racing a writer.
+ */
 public class State {
     private static final String TAG = "State";
-    private static final String FILENAME = "cmupdater.state";
+    private static final String FILENAME = "cmupdater.catalog";
+    // Java serialization based state written by older versions
+    private static final String LEGACY_FILENAME = "cmupdater.state";
+
+    private static final int MAGIC = 0x434d5543; // "CMUC"
+    // 2: added the SHA-256 of the package
+    // 3: added the size of the package
+    private static final int VERSION = 3;
+
+    // Back-to-back deferred saves within this window are written only once
+    private static final long WRITE_BEHIND_DELAY = 2000; // 2 seconds
+
+    private static final Object sLock = new Object();
+    private static Handler sWriteHandler;
+    private static LinkedList<UpdateInfo> sPendingState;
+    private static Runnable sPendingCallback;
+
+    public static boolean hasState(Context context) {
+        synchronized (sLock) {
+            return sPendingState != null
+                    || new File(context.getCacheDir(), FILENAME).isFile()
+                    || new File(context.getCacheDir(), LEGACY_FILENAME).isFile();
+        }
+    }
 
     public static void saveState(Context context, LinkedList<UpdateInfo> availableUpdates) {
-        ObjectOutputStream oos = null;
+        synchronized (sLock) {
+            // This write supersedes any pending deferred one
+            sPendingState = null;
+            sPendingCallback = null;
+            writeState(context, availableUpdates);
+        }
+    }
+
+    /**
+     * Save the state in the background. Saves scheduled in quick succession
+     * are coalesced, only the last one is written. Loads in the meantime
+     * return the pending state.
+     *
+     * @param onSaved run on the writer thread once this state is on disk,
+     *                dropped if the state is superseded or the write fails
+     */
+    public static void scheduleSaveState(Context context,
+            LinkedList<UpdateInfo> availableUpdates, Runnable onSaved) {
+        final Context appContext = context.getApplicationContext();
+        synchronized (sLock) {
+            boolean scheduled = sPendingState != null;
+            sPendingState = new LinkedList<UpdateInfo>(availableUpdates);
+            sPendingCallback = onSaved;
+            if (scheduled) {
+                return;
+            }
+            if (sWriteHandler == null) {
+                HandlerThread thread = new HandlerThread(TAG);
+                thread.start();
+                sWriteHandler = new Handler(thread.getLooper());
+            }
+            sWriteHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    flushPendingState(appContext);
+                }
+            }, WRITE_BEHIND_DELAY);
+        }
+    }
+
+    private static void flushPendingState(Context context) {
+        Runnable callback;
+        synchronized (sLock) {
+            if (sPendingState == null) {
+                return;
+            }
+            boolean saved = writeState(context, sPendingState);
+            callback = saved ? sPendingCallback : null;
+            sPendingState = null;
+            sPendingCallback = null;
+        }
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    private static boolean writeState(Context context, LinkedList<UpdateInfo> availableUpdates) {
+        AtomicFile file = new AtomicFile(new File(context.getCacheDir(), FILENAME));
         FileOutputStream fos = null;
         try {
-            File f = new File(context.getCacheDir(), FILENAME);
-            fos = new FileOutputStream(f);
-            oos = new ObjectOutputStream(fos);
-            oos.writeObject(availableUpdates);
-            oos.flush();
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(payload);
+            for (UpdateInfo ui : availableUpdates) {
+                writeUpdateInfo(out, ui);
+            }
+            out.flush();
+
+            CRC32 crc = new CRC32();
+            crc.update(payload.toByteArray(), 0, payload.size());
+
+            fos = file.startWrite();
+            DataOutputStream header = new DataOutputStream(fos);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(availableUpdates.size());
+            header.writeInt(payload.size());
+            header.writeLong(crc.getValue());
+            payload.writeTo(header);
+            header.flush();
+            // Syncs the data and replaces the old file
+            file.finishWrite(fos);
+            return true;
         } catch (IOException e) {
             Log.e(TAG, "Exception on saving instance state", e);
-        } finally {
-            try {
-                if (oos != null) {
-                    oos.close();
-                }
-                if (fos != null) {
-                    fos.close();
-                }
-            } catch (IOException e) {
-                // ignored, can't do anything anyway
+            if (fos != null) {
+                file.failWrite(fos);
             }
+            return false;
         }
     }
 
-    @SuppressWarnings("unchecked")
     public static LinkedList<UpdateInfo> loadState(Context context) {
+        synchronized (sLock) {
+            if (sPendingState != null) {
+                return new LinkedList<UpdateInfo>(sPendingState);
+            }
+
+            AtomicFile file = new AtomicFile(new File(context.getCacheDir(), FILENAME));
+            File legacy = new File(context.getCacheDir(), LEGACY_FILENAME);
+            if (!file.getBaseFile().exists() && legacy.exists()) {
+                LinkedList<UpdateInfo> availableUpdates = loadLegacyState(legacy);
+                if (writeState(context, availableUpdates)) {
+                    legacy.delete();
+                }
+                return availableUpdates;
+            }
+            return readState(file);
+        }
+    }
+
+    private static LinkedList<UpdateInfo> readState(AtomicFile file) {
         LinkedList<UpdateInfo> availableUpdates = new LinkedList<UpdateInfo>();
-        ObjectInputStream ois = null;
-        FileInputStream fis = null;
-        try {
-            File f = new File(context.getCacheDir(), FILENAME);
-            fis = new FileInputStream(f);
-            ois = new ObjectInputStream(fis);
+        // Restores the previous file if a write didn't complete
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(file.openRead()))) {
+            if (in.readInt() != MAGIC) {
+                Log.d(TAG, "Unexpected state file format");
+                return availableUpdates;
+            }
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                Log.d(TAG, "Unsupported state file version " + version);
+                return availableUpdates;
+            }
+            int count = in.readInt();
+            int length = in.readInt();
+            long checksum = in.readLong();
+            if (count < 0 || length < 0 || length > file.getBaseFile().length()) {
+                Log.e(TAG, "Corrupted state file header");
+                return availableUpdates;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (crc.getValue() != checksum) {
+                Log.e(TAG, "State file checksum mismatch");
+                return availableUpdates;
+            }
+
+            DataInputStream entries = new DataInputStream(new ByteArrayInputStream(payload));
+            for (int i = 0; i < count; i++) {
+                availableUpdates.add(readUpdateInfo(entries, version));
+            }
+        } catch (FileNotFoundException e) {
+            Log.i(TAG, "No state info stored");
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on loading state", e);
+            availableUpdates.clear();
+        }
+        return availableUpdates;
+    }
+
+    private static void writeUpdateInfo(DataOutputStream out, UpdateInfo ui)
+            throws IOException {
+        writeString(out, ui.getName());
+        writeString(out, ui.getFileName());
+        writeString(out, ui.getType());
+        out.writeInt(ui.getApiLevel());
+        out.writeLong(ui.getDate());
+        writeString(out, ui.getDownloadUrl());
+        writeString(out, ui.getChangelogUrl());
+        writeString(out, ui.getVersion());
+        writeString(out, ui.getSha256());
+        out.writeLong(ui.getSize());
+    }
+
+    private static UpdateInfo readUpdateInfo(DataInputStream in, int version)
+            throws IOException {
+        String uiName = readString(in);
+        UpdateInfo.Builder builder = new UpdateInfo.Builder()
+                .setFileName(readString(in))
+                .setName(uiName)
+                .setType(readString(in))
+                .setApiLevel(in.readInt())
+                .setBuildDate(in.readLong())
+                .setDownloadUrl(readString(in))
+                .setChangelogUrl(readString(in))
+                .setVersion(readString(in));
+        if (version >= 2) {
+            builder.setSha256(readString(in));
+        }
+        if (version >= 3) {
+            builder.setSize(in.readLong());
+        }
+        return builder.build();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new IOException("String length " + length + " exceeds the payload");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
 
+    @SuppressWarnings("unchecked")
+    private static LinkedList<UpdateInfo> loadLegacyState(File f) {
+        LinkedList<UpdateInfo> availableUpdates = new LinkedList<UpdateInfo>();
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(f))) {
             Object o = ois.readObject();
             if (o != null && o instanceof LinkedList<?>) {
                 availableUpdates = (LinkedList<UpdateInfo>) o;
@@ -68,22 +296,10 @@ public class State {
             Log.e(TAG, "Unable to load stored class", e);
         } catch (IllegalArgumentException e) {
             Log.d(TAG, "Unexpected state file format", e);
-        } catch (FileNotFoundException e) {
-            Log.i(TAG, "No state info stored");
         } catch (IOException e) {
-            Log.e(TAG, "Exception on loading state", e);
-        } finally {
-            try {
-                if (ois != null) {
-                    ois.close();
-                }
-                if (fis != null) {
-                    fis.close();
-                }
-            } catch (IOException e) {
-                // ignored, can't do anything anyway
-            }
+            Log.e(TAG, "Exception on loading legacy state", e);
         }
+        Log.i(TAG, "Migrated " + availableUpdates.size() + " entries from the legacy state");
         return availableUpdates;
     }
 }
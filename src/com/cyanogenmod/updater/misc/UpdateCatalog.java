@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.misc;
+
+import android.content.Context;
+import android.os.FileObserver;
+
+import com.cyanogenmod.updater.utils.UpdateFilter;
+import com.cyanogenmod.updater.utils.Utils;
+
+import java.io.File;
+import java.util.LinkedList;
+
+/**
+ * Process wide, in-memory copy of the update catalog and of the list of
+ * downloaded packages, so that showing the updates doesn't have to go to the
+ * disk every time. The catalog is replaced when {@link #publish} is called by
+ * the update check, the download list is dropped whenever the updates folder
+ * changes.
+ */
+public class UpdateCatalog {
+    private static final int FOLDER_EVENTS = FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE
+            | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private static UpdateCatalog sInstance;
+
+    private final Context mContext;
+    private final File mUpdateFolder;
+    private final FileObserver mFolderObserver;
+    private boolean mFolderWatched;
+
+    private LinkedList<UpdateInfo> mAvailableUpdates;
+    private LinkedList<String> mDownloadedFiles;
+
+    public static synchronized UpdateCatalog getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UpdateCatalog(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private UpdateCatalog(Context context) {
+        mContext = context;
+        mUpdateFolder = Utils.makeUpdateFolder(context);
+        mFolderObserver = new FileObserver(mUpdateFolder.getPath(), FOLDER_EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                onFolderChanged(event);
+            }
+        };
+    }
+
+    /**
+     * Get the updates of the last update check
+     */
+    public synchronized LinkedList<UpdateInfo> getAvailableUpdates() {
+        if (mAvailableUpdates == null) {
+            mAvailableUpdates = State.loadState(mContext);
+        }
+        return new LinkedList<UpdateInfo>(mAvailableUpdates);
+    }
+
+    /**
+     * Get the file names of the update packages in the updates folder
+     */
+    public synchronized LinkedList<String> getDownloadedFiles() {
+        if (!mFolderWatched) {
+            // Also (re)creates the folder if it was deleted
+            Utils.makeUpdateFolder(mContext);
+            mFolderObserver.startWatching();
+            mFolderWatched = true;
+            mDownloadedFiles = null;
+        }
+        if (mDownloadedFiles == null) {
+            mDownloadedFiles = new LinkedList<String>();
+            File[] files = mUpdateFolder.listFiles(new UpdateFilter(".zip"));
+            if (files != null) {
+                for (File file : files) {
+                    if (file.isFile()) {
+                        mDownloadedFiles.add(file.getName());
+                    }
+                }
+            }
+        }
+        return new LinkedList<String>(mDownloadedFiles);
+    }
+
+    /**
+     * Replace the catalog with the result of a new update check and persist it
+     *
+     * @see State#scheduleSaveState
+     */
+    public synchronized void publish(LinkedList<UpdateInfo> updates, Runnable onSaved) {
+        mAvailableUpdates = new LinkedList<UpdateInfo>(updates);
+        State.scheduleSaveState(mContext, mAvailableUpdates, onSaved);
+    }
+
+    /**
+     * Drop the cached download list. The folder is watched, but the events
+     * arrive asynchronously, so callers that just changed the folder should
+     * invalidate explicitly before reading it again.
+     */
+    public synchronized void invalidateDownloads() {
+        mDownloadedFiles = null;
+    }
+
+    private synchronized void onFolderChanged(int event) {
+        mDownloadedFiles = null;
+        if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+            // The watch is gone along with the folder, set it up again on next access
+            mFolderObserver.stopWatching();
+            mFolderWatched = false;
+        }
+    }
+}
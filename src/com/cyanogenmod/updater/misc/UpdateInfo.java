@@ -14,13 +14,13 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.TextUtils;
 
-import com.cyanogenmod.updater.utils.Utils;
 import com.cyanogenmod.updater.misc.Constants;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Objects;
 
 public class UpdateInfo implements Parcelable, Serializable {
     private static final long serialVersionUID = 5499890003569313403L;
@@ -34,8 +34,11 @@ public class UpdateInfo implements Parcelable, Serializable {
     private String mDownloadUrl;
     private String mChangelogUrl;
     private String mVersion;
+    private String mSha256;
+    private long mSize = -1;
 
-    private Boolean mIsNewerThanInstalled;
+    private transient long mOrderingKey;
+    private transient boolean mHasOrderingKey;
 
     private UpdateInfo() {
         // Use the builder
@@ -45,6 +48,12 @@ public class UpdateInfo implements Parcelable, Serializable {
         readFromParcel(in);
     }
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        // Field initializers don't run, entries stored before the size would get 0
+        mSize = -1;
+        in.defaultReadObject();
+    }
+
     public File getChangeLogFile(Context context) {
         return new File(context.getCacheDir(), mFileName + CHANGELOG_EXTENSION);
     }
@@ -112,20 +121,39 @@ public class UpdateInfo implements Parcelable, Serializable {
         return mVersion;
     }
 
+    /**
+     * Get the hex SHA-256 of the package, null if the server didn't provide one
+     */
+    public String getSha256() {
+        return mSha256;
+    }
+
+    /**
+     * Get the size of the package in bytes, -1 if the server didn't provide it
+     */
+    public long getSize() {
+        return mSize;
+    }
+
     public boolean isNewerThanInstalled() {
-        if (mIsNewerThanInstalled != null) {
-            return mIsNewerThanInstalled;
-        }
+        return isNewerThan(InstalledBuild.get());
+    }
 
-        int installedApiLevel = Utils.getInstalledApiLevel();
-        if (installedApiLevel != mApiLevel && mApiLevel > 0) {
-            mIsNewerThanInstalled = mApiLevel > installedApiLevel;
-        } else {
-            // API levels match, so compare build dates.
-            mIsNewerThanInstalled = mBuildDate > Utils.getInstalledBuildDate();
-        }
+    public boolean isNewerThan(InstalledBuild installed) {
+        return getOrderingKey() > installed.getOrderingKey();
+    }
 
-        return mIsNewerThanInstalled;
+    /**
+     * Get the key ordering this build against others
+     *
+     * @see BuildOrder
+     */
+    public long getOrderingKey() {
+        if (!mHasOrderingKey) {
+            mOrderingKey = BuildOrder.getKey(mVersion, mBuildDate, mApiLevel, mType);
+            mHasOrderingKey = true;
+        }
+        return mOrderingKey;
     }
 
     public boolean isSameVersion(String version) {
@@ -153,9 +181,7 @@ public class UpdateInfo implements Parcelable, Serializable {
     }
 
     public static String extractUiName(String fileName) {
-        String deviceType = Utils.getDeviceType();
-        String uiName = fileName.replaceAll("(-signed)?\\.zip$", "");
-        return uiName.replaceAll("-" + deviceType + "-?", "");
+        return BuildFileName.parse(fileName).getUiName();
     }
 
     @Override
@@ -180,6 +206,12 @@ public class UpdateInfo implements Parcelable, Serializable {
                 && TextUtils.equals(mDownloadUrl, ui.mDownloadUrl);
     }
 
+    @Override
+    public int hashCode() {
+        // Must use the same fields as equals()
+        return Objects.hash(mFileName, mType, mBuildDate, mDownloadUrl);
+    }
+
     public static final Parcelable.Creator<UpdateInfo> CREATOR = new Parcelable.Creator<UpdateInfo>() {
         public UpdateInfo createFromParcel(Parcel in) {
             return new UpdateInfo(in);
@@ -204,6 +236,8 @@ public class UpdateInfo implements Parcelable, Serializable {
         out.writeLong(mBuildDate);
         out.writeString(mDownloadUrl);
         out.writeString(mVersion);
+        out.writeString(mSha256);
+        out.writeLong(mSize);
     }
 
     private void readFromParcel(Parcel in) {
@@ -214,6 +248,8 @@ public class UpdateInfo implements Parcelable, Serializable {
         mBuildDate = in.readLong();
         mDownloadUrl = in.readString();
         mVersion = in.readString();
+        mSha256 = in.readString();
+        mSize = in.readLong();
     }
 
     public static class Builder {
@@ -225,6 +261,8 @@ public class UpdateInfo implements Parcelable, Serializable {
         private String mDownloadUrl;
         private String mChangelogUrl;
         private String mVersion;
+        private String mSha256;
+        private long mSize = -1;
 
         public Builder setName(String uiName) {
             mUiName = uiName;
@@ -266,6 +304,16 @@ public class UpdateInfo implements Parcelable, Serializable {
             return this;
         }
 
+        public Builder setSha256(String sha256) {
+            mSha256 = sha256;
+            return this;
+        }
+
+        public Builder setSize(long size) {
+            mSize = size;
+            return this;
+        }
+
         public UpdateInfo build() {
             UpdateInfo info = new UpdateInfo();
             info.mUiName = mUiName;
@@ -276,6 +324,8 @@ public class UpdateInfo implements Parcelable, Serializable {
             info.mDownloadUrl = mDownloadUrl;
             info.mChangelogUrl = mChangelogUrl;
             info.mVersion = mVersion;
+            info.mSha256 = mSha256;
+            info.mSize = mSize;
             return info;
         }
 
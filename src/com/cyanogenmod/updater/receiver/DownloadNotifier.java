@@ -10,6 +10,7 @@
 
 package com.cyanogenmod.updater.receiver;
 
+import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
@@ -54,12 +55,29 @@ public class DownloadNotifier {
                 .notify(R.string.not_download_success, builder.build());
     }
 
+    public static Notification createDownloadingNotification(Context context,
+            Intent updateIntent, String fileName) {
+        return createBaseContentBuilder(context, updateIntent)
+                .setSmallIcon(android.R.drawable.stat_sys_download)
+                .setContentTitle(context.getString(R.string.not_download_running))
+                .setContentText(UpdateInfo.extractUiName(fileName))
+                .setProgress(0, 0, true)
+                .setOngoing(true)
+                .setAutoCancel(false)
+                .build();
+    }
+
     public static void notifyDownloadError(Context context,
             Intent updateIntent, int failureMessageResId) {
+        notifyDownloadError(context, updateIntent, context.getString(failureMessageResId));
+    }
+
+    public static void notifyDownloadError(Context context,
+            Intent updateIntent, String failureMessage) {
         NotificationCompat.Builder builder = createBaseContentBuilder(context, updateIntent)
                 .setSmallIcon(android.R.drawable.stat_notify_error)
                 .setContentTitle(context.getString(R.string.not_download_failure))
-                .setContentText(context.getString(failureMessageResId))
+                .setContentText(failureMessage)
                 .setTicker(context.getString(R.string.not_download_failure));
 
         ((NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE))
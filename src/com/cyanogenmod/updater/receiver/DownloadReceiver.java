@@ -34,6 +34,7 @@ public class DownloadReceiver extends BroadcastReceiver{
 
     public static final String ACTION_START_DOWNLOAD = "com.cyanogenmod.cmupdater.action.START_DOWNLOAD";
     public static final String EXTRA_UPDATE_INFO = "update_info";
+    public static final String EXTRA_METERED_ALLOWED = "metered_allowed";
 
     public static final String ACTION_DOWNLOAD_STARTED = "com.cyanogenmod.cmupdater.action.DOWNLOAD_STARTED";
 
@@ -48,7 +49,8 @@ public class DownloadReceiver extends BroadcastReceiver{
 
         if (ACTION_START_DOWNLOAD.equals(action)) {
             UpdateInfo ui = (UpdateInfo) intent.getParcelableExtra(EXTRA_UPDATE_INFO);
-            handleStartDownload(context, ui);
+            handleStartDownload(context, ui,
+                    intent.getBooleanExtra(EXTRA_METERED_ALLOWED, false));
         } else if (DownloadManager.ACTION_DOWNLOAD_COMPLETE.equals(action)) {
             long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
             handleDownloadComplete(context, id);
@@ -75,8 +77,8 @@ public class DownloadReceiver extends BroadcastReceiver{
         }
     }
 
-    private void handleStartDownload(Context context, UpdateInfo ui) {
-        DownloadService.start(context, ui);
+    private void handleStartDownload(Context context, UpdateInfo ui, boolean meteredAllowed) {
+        DownloadService.start(context, ui, meteredAllowed);
     }
 
     private void handleDownloadComplete(Context context, long id) {
@@ -91,12 +93,7 @@ public class DownloadReceiver extends BroadcastReceiver{
         Intent intent = new Intent(context, DownloadCompleteIntentService.class);
         intent.putExtra(Constants.DOWNLOAD_ID, id);
         intent.putExtra(Constants.DOWNLOAD_NAME, fileName);
+        // The shared prefs are cleared once the download is processed
         context.startService(intent);
-
-        // Clear the shared prefs
-        prefs.edit()
-                .remove(Constants.DOWNLOAD_ID)
-                .remove(Constants.DOWNLOAD_NAME)
-                .apply();
     }
 }
@@ -19,6 +19,8 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.cyanogenmod.updater.misc.Constants;
+import com.cyanogenmod.updater.service.ABOTAService;
+import com.cyanogenmod.updater.service.DownloadService;
 import com.cyanogenmod.updater.utils.Utils;
 
 public class UpdateCheckReceiver extends BroadcastReceiver {
@@ -26,6 +28,18 @@ public class UpdateCheckReceiver extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
+        final String action = intent.getAction();
+        if (Intent.ACTION_BOOT_COMPLETED.equals(action)
+                || (ConnectivityManager.CONNECTIVITY_ACTION.equals(action)
+                && !intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false))) {
+            // Interrupted downloads don't depend on the update check settings
+            DownloadService.resumeDownloads(context);
+        }
+        if (Intent.ACTION_BOOT_COMPLETED.equals(action)) {
+            // Finds out whether we rebooted into an installed update
+            ABOTAService.reattach(context);
+        }
+
         // Load the required settings from preferences
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         int updateFrequency = prefs.getInt(Constants.UPDATE_CHECK_PREF, Constants.UPDATE_FREQ_WEEKLY);
@@ -36,7 +50,6 @@ public class UpdateCheckReceiver extends BroadcastReceiver {
         }
 
         // Not set to manual updates, parse the received action
-        final String action = intent.getAction();
         if (ConnectivityManager.CONNECTIVITY_ACTION.equals(action)) {
             // Connectivity has changed
             boolean hasConnection = !intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false);
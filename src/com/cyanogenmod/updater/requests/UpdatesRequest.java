@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.requests;
+
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import com.cyanogenmod.updater.misc.UpdateInfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Fetches the update catalog and parses it straight into {@link UpdateInfo}
+ * objects. Parsing happens in {@link #parseNetworkResponse} on the network
+ * dispatcher thread, with a pull parser, so no intermediate JSON tree is
+ * built and nothing but the delivery reaches the main thread.
+ */
+public class UpdatesRequest extends Request<UpdatesResponse> {
+    private static final String TAG = "UpdatesRequest";
+
+    private final Response.Listener<UpdatesResponse> mListener;
+    private String mUserAgent;
+    private HashMap<String, String> mHeaders = new HashMap<String, String>();
+
+    public UpdatesRequest(String url, String userAgent,
+            Response.Listener<UpdatesResponse> listener, Response.ErrorListener errorListener) {
+        super(Method.GET, url, errorListener);
+        mListener = listener;
+        mUserAgent = userAgent;
+        // We do our own revalidation, don't let Volley's disk cache get in the way
+        setShouldCache(false);
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        if (mUserAgent != null) {
+            mHeaders.put("User-Agent", mUserAgent);
+        }
+        mHeaders.put("Cache-Control", "no-cache");
+        return mHeaders;
+    }
+
+    public void addHeader(String key, String what) {
+        mHeaders.put(key, what);
+    }
+
+    /**
+     * Make the request conditional on the validators of a previous response.
+     * The server answers with 304 if the catalog didn't change, which is
+     * delivered as a response without updates.
+     */
+    public void setValidators(String eTag, String lastModified) {
+        if (eTag != null) {
+            mHeaders.put("If-None-Match", eTag);
+        }
+        if (lastModified != null) {
+            mHeaders.put("If-Modified-Since", lastModified);
+        }
+    }
+
+    @Override
+    protected Response<UpdatesResponse> parseNetworkResponse(NetworkResponse response) {
+        String eTag = null;
+        String lastModified = null;
+        if (response.headers != null) {
+            eTag = getHeader(response.headers, "ETag");
+            lastModified = getHeader(response.headers, "Last-Modified");
+        }
+
+        if (response.notModified || response.statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return Response.success(
+                    new UpdatesResponse(getUrl(), null, eTag, lastModified), null);
+        }
+
+        try {
+            LinkedList<UpdateInfo> updates = parseUpdates(response);
+            return Response.success(
+                    new UpdatesResponse(getUrl(), updates, eTag, lastModified), null);
+        } catch (IOException | IllegalStateException e) {
+            // JsonReader reports syntax errors as IOException, type mismatches
+            // as IllegalStateException
+            return Response.error(new ParseError(e));
+        }
+    }
+
+    @Override
+    protected void deliverResponse(UpdatesResponse response) {
+        mListener.onResponse(response);
+    }
+
+    private LinkedList<UpdateInfo> parseUpdates(NetworkResponse response) throws IOException {
+        LinkedList<UpdateInfo> updates = new LinkedList<UpdateInfo>();
+        String charset = HttpHeaderParser.parseCharset(response.headers, "UTF-8");
+        int entries = 0;
+
+        try (JsonReader reader = new JsonReader(new InputStreamReader(
+                new ByteArrayInputStream(response.data), charset))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"response".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    entries++;
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    UpdateInfo info = parseUpdate(reader);
+                    if (info != null) {
+                        updates.add(info);
+                    }
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        }
+
+        Log.d(TAG, "Got update JSON data with " + entries + " entries");
+        return updates;
+    }
+
+    private UpdateInfo parseUpdate(JsonReader reader) throws IOException {
+        String fileName = null;
+        String url = null;
+        String type = null;
+        String version = null;
+        String sha256 = null;
+        long buildDate = -1;
+        long size = -1;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "filename":
+                    fileName = reader.nextString();
+                    break;
+                case "url":
+                    url = reader.nextString();
+                    break;
+                case "datetime":
+                    buildDate = reader.nextLong();
+                    break;
+                case "romtype":
+                    type = reader.nextString();
+                    break;
+                case "version":
+                    version = reader.nextString();
+                    break;
+                case "sha256":
+                    sha256 = reader.nextString();
+                    break;
+                case "size":
+                    size = reader.nextLong();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        if (fileName == null || url == null || type == null || version == null
+                || buildDate < 0) {
+            Log.e(TAG, "Skipping incomplete update entry " + fileName);
+            return null;
+        }
+
+        UpdateInfo ui = new UpdateInfo.Builder()
+                .setFileName(fileName)
+                .setDownloadUrl(url)
+                .setApiLevel(Build.VERSION.SDK_INT) // TODO: remove this entirely
+                .setBuildDate(buildDate)
+                .setType(type)
+                .setVersion(version)
+                .setSha256(sha256)
+                .setSize(size)
+                .build();
+
+// XXXX Move this into .isCompatible()
+        if (!ui.isNewerThanInstalled()) {
+            Log.d(TAG, "Build " + ui.getFileName() + " is older than the installed build");
+            return null;
+        }
+
+        return ui;
+    }
+
+    private static String getHeader(Map<String, String> headers, String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+}
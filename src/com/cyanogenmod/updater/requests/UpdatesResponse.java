@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.requests;
+
+import com.cyanogenmod.updater.misc.UpdateInfo;
+
+import java.util.LinkedList;
+
+public class UpdatesResponse {
+    private final String mUrl;
+    private final LinkedList<UpdateInfo> mUpdates;
+    private final String mETag;
+    private final String mLastModified;
+
+    UpdatesResponse(String url, LinkedList<UpdateInfo> updates, String eTag,
+            String lastModified) {
+        mUrl = url;
+        mUpdates = updates;
+        mETag = eTag;
+        mLastModified = lastModified;
+    }
+
+    /**
+     * Get the URL the catalog was fetched from
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * Get the parsed updates, null if the catalog was not modified
+     */
+    public LinkedList<UpdateInfo> getUpdates() {
+        return mUpdates;
+    }
+
+    public boolean isNotModified() {
+        return mUpdates == null;
+    }
+
+    /**
+     * Get the ETag validator of the response
+     */
+    public String getETag() {
+        return mETag;
+    }
+
+    /**
+     * Get the Last-Modified validator of the response
+     */
+    public String getLastModified() {
+        return mLastModified;
+    }
+}
@@ -14,31 +14,49 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.AsyncTask;
+import android.os.RecoverySystem;
+import android.os.SELinux;
 import android.os.ServiceSpecificException;
+import android.os.StatFs;
 import android.os.UpdateEngine;
 import android.os.UpdateEngine.ErrorCodeConstants;
 import android.os.UpdateEngine.UpdateStatusConstants;
 import android.os.UpdateEngineCallback;
+import android.preference.PreferenceManager;
+import android.provider.Settings;
 import android.support.v4.app.NotificationCompat.Builder;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.cyanogenmod.updater.R;
+import com.cyanogenmod.updater.download.HttpRangeSource;
 import com.cyanogenmod.updater.misc.Constants;
+import com.cyanogenmod.updater.misc.PackageMetadata;
 import com.cyanogenmod.updater.receiver.DownloadReceiver;
 import com.cyanogenmod.updater.utils.Utils;
+import com.cyanogenmod.updater.utils.ZipIndex;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.InputStreamReader;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.List;
-import java.util.Scanner;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Installs A/B updates through update_engine.
+ *
+ * An install goes through staging, where the payload is located and made
+ * readable by update_engine, then applying, finalizing and needs-reboot.
+ * The state and the staged payload are persisted, so once the process is
+ * restarted it binds to update_engine again and carries on from where it
+ * was: nothing that was staged is staged again and a payload that was
+ * handed over isn't applied twice.
+ */
 public class ABOTAService extends IntentService {
 
     private static final String TAG = "ABOTAService";
@@ -46,24 +64,60 @@ public class ABOTAService extends IntentService {
     // broadcast actions
     public static final String ACTION_UPDATE_INSTALL_FINISHED = "com.cyanogenmod.cmupdater.action.ACTION_UPDATE_INSTALL_FINISHED";
     public static final String ACTION_UPDATE_INSTALL_ERRORED = "com.cyanogenmod.cmupdater.action.ACTION_UPDATE_INSTALL_ERRORED";
+    public static final String ACTION_UPDATE_INSTALL_CANCELLED = "com.cyanogenmod.cmupdater.action.ACTION_UPDATE_INSTALL_CANCELLED";
+    // Another update is being installed or waits for a reboot
+    public static final String ACTION_UPDATE_INSTALL_REJECTED = "com.cyanogenmod.cmupdater.action.ACTION_UPDATE_INSTALL_REJECTED";
+
+    // service actions, an intent without one starts an install
+    private static final String ACTION_REATTACH = "com.cyanogenmod.cmupdater.action.AB_REATTACH";
+    private static final String ACTION_SUSPEND = "com.cyanogenmod.cmupdater.action.AB_SUSPEND";
+    private static final String ACTION_RESUME = "com.cyanogenmod.cmupdater.action.AB_RESUME";
+    private static final String ACTION_CANCEL = "com.cyanogenmod.cmupdater.action.AB_CANCEL";
 
     public static final int STATUS_PREPARING_ZIP = 1000;
+    public static final int STATUS_SUSPENDED = 1001;
 
-    public static final String EXTRA_ZIP_NAME = "zip_name";
-    public static final String EXTRA_ERROR_CODE = "error_code";;
+    // Install states, in the order they are gone through
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_STAGING = 1;
+    // Staged, not known to be handed over to update_engine yet
+    public static final int STATE_STAGED = 2;
+    public static final int STATE_APPLYING = 3;
+    public static final int STATE_SUSPENDED = 4;
+    public static final int STATE_FINALIZING = 5;
+    public static final int STATE_NEEDS_REBOOT = 6;
+
+    private static final String PAYLOAD_FILE = "payload.bin";
+    private static final String UPDATE_PACKAGE_DIR = Constants.AB_PACKAGE_DIR + "/" + Constants.UPDATES_FOLDER;
 
-    private static boolean mABUpdateRunning = false;
-    private static Context mContext;
+    // How long update_engine gets to report its status once bound
+    private static final long BIND_TIMEOUT = 2000; // 2 seconds
 
-    private boolean errorCaught = false;
-    private String mFilename;
-    private final String updatePackageDir = "/data/ota_package/" + Constants.UPDATES_FOLDER;
+    public static final String EXTRA_ZIP_NAME = "zip_name";
+    // Set to install straight from the update server, the URL of the package
+    public static final String EXTRA_URL = "url";
+    public static final String EXTRA_ERROR_CODE = "error_code";
+
+    // Bound once per process, the callback outlives the service
+    private static UpdateEngine sUpdateEngine;
+    // Armed again whenever update_engine is bound
+    private static volatile CountDownLatch sStatusReceived = new CountDownLatch(1);
+    private static volatile int sLastStatus = -1;
+    private static volatile int sLastProgress = 0;
+    // Whether the staged payload was handed over by this process
+    private static volatile boolean sApplied = false;
 
     public ABOTAService() {
         super("ABOTAService");
     }
 
-    private class UpdateEngineCB extends UpdateEngineCallback {
+    private static class UpdateEngineCB extends UpdateEngineCallback {
+        private final Context mContext;
+
+        UpdateEngineCB(Context context) {
+            mContext = context;
+        }
+
         /*
          *  frameworks/base/core/java/android/os/UpdateEngine.java
          *
@@ -83,19 +137,35 @@ public class ABOTAService extends IntentService {
          */
         @Override
         public void onStatusUpdate(int status, float percent) {
-            if (!errorCaught) {
-                switch (status) {
-                    case UpdateStatusConstants.DOWNLOADING:
-                    case UpdateStatusConstants.FINALIZING:
-                    case UpdateStatusConstants.UPDATED_NEED_REBOOT:
-                        notifyOngoingABOTA(mContext, (int)(percent*100), status);
-                        break;
-                    case UpdateStatusConstants.REPORTING_ERROR_EVENT:
-                        Intent errorIntent = new Intent(ACTION_UPDATE_INSTALL_ERRORED);
-                        errorIntent.putExtra(EXTRA_ERROR_CODE, status);
-                        sendBroadcast(errorIntent);
-                        break;
-                }
+            int progress = (int) (percent * 100);
+            sLastStatus = status;
+            sLastProgress = progress;
+            sStatusReceived.countDown();
+
+            switch (status) {
+                case UpdateStatusConstants.DOWNLOADING:
+                case UpdateStatusConstants.VERIFYING:
+                    advanceState(mContext, STATE_APPLYING);
+                    break;
+                case UpdateStatusConstants.FINALIZING:
+                    advanceState(mContext, STATE_FINALIZING);
+                    break;
+            }
+
+            int state = getInstallState(mContext);
+            if (state == STATE_IDLE) {
+                // Failed or cancelled, nothing to show
+                return;
+            }
+            switch (status) {
+                case UpdateStatusConstants.DOWNLOADING:
+                    notifyOngoingABOTA(mContext, progress,
+                            state == STATE_SUSPENDED ? STATUS_SUSPENDED : status);
+                    break;
+                case UpdateStatusConstants.FINALIZING:
+                case UpdateStatusConstants.UPDATED_NEED_REBOOT:
+                    notifyOngoingABOTA(mContext, progress, status);
+                    break;
             }
         }
 
@@ -122,20 +192,11 @@ public class ABOTAService extends IntentService {
         public void onPayloadApplicationComplete(int errorCode) {
             switch (errorCode) {
                 case ErrorCodeConstants.SUCCESS:
-                    File path = new File(updatePackageDir);
-                    if (path.exists()) {
-                        Utils.deleteDir(path);
-                    }
-
-                    Intent successIntent = new Intent(ACTION_UPDATE_INSTALL_FINISHED);
-                    successIntent.putExtra(EXTRA_ZIP_NAME, mFilename);
-                    sendBroadcast(successIntent);
+                    completeInstall(mContext);
                     break;
 
                 default:
-                    Intent errorIntent = new Intent(ACTION_UPDATE_INSTALL_ERRORED);
-                    errorIntent.putExtra(EXTRA_ERROR_CODE, errorCode);
-                    sendBroadcast(errorIntent);
+                    failInstall(mContext, errorCode);
                     break;
             }
         }
@@ -149,68 +210,516 @@ public class ABOTAService extends IntentService {
 
     @Override
     protected void onHandleIntent(Intent intent) {
-        errorCaught = false;
-        mContext = getApplicationContext();
-        mFilename = intent.getStringExtra(EXTRA_ZIP_NAME);
+        Context context = getApplicationContext();
+        // Restarted after the process died
+        String action = intent != null ? intent.getAction() : ACTION_REATTACH;
+
+        if (ACTION_REATTACH.equals(action)) {
+            reattachEngine(context);
+        } else if (ACTION_SUSPEND.equals(action)) {
+            suspend(context);
+        } else if (ACTION_RESUME.equals(action)) {
+            resume(context);
+        } else if (ACTION_CANCEL.equals(action)) {
+            cancel(context);
+        } else {
+            install(context, intent.getStringExtra(EXTRA_ZIP_NAME),
+                    intent.getStringExtra(EXTRA_URL));
+        }
+    }
 
-        File path = new File(updatePackageDir);
-        if (path.exists()) {
-            Utils.deleteDir(path);
+    /**
+     * Get the install state, one of the STATE_* constants
+     */
+    public static synchronized int getInstallState(Context context) {
+        return getPrefs(context).getInt(Constants.AB_INSTALL_STATE, STATE_IDLE);
+    }
+
+    /**
+     * Get the file name of the package being installed, null if none
+     */
+    public static synchronized String getInstallName(Context context) {
+        if (getInstallState(context) == STATE_IDLE) {
+            return null;
+        }
+        return getPrefs(context).getString(Constants.AB_INSTALL_NAME, null);
+    }
+
+    public static boolean isABUpdateRunning(Context context) {
+        return getInstallState(context) != STATE_IDLE;
+    }
+
+    /**
+     * Pick up an install the process was killed in the middle of
+     */
+    public static void reattach(Context context) {
+        if (getInstallState(context) != STATE_IDLE) {
+            Intent intent = new Intent(context, ABOTAService.class);
+            intent.setAction(ACTION_REATTACH);
+            context.startService(intent);
+        }
+    }
+
+    private static void install(Context context, String name, String url) {
+        synchronized (ABOTAService.class) {
+            if (getInstallState(context) != STATE_IDLE) {
+                Log.w(TAG, "An update is already being installed, ignoring " + name);
+                // Whoever asked may have shown something else meanwhile
+                notifyInstallState(context);
+                Intent rejectedIntent = new Intent(ACTION_UPDATE_INSTALL_REJECTED);
+                rejectedIntent.putExtra(EXTRA_ZIP_NAME, name);
+                context.sendBroadcast(rejectedIntent);
+                return;
+            }
+            getPrefs(context).edit()
+                    .putInt(Constants.AB_INSTALL_STATE, STATE_STAGING)
+                    .putString(Constants.AB_INSTALL_NAME, name)
+                    .putString(Constants.AB_INSTALL_URL, url)
+                    .commit();
+        }
+        stage(context);
+    }
+
+    private static void stage(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        String name = prefs.getString(Constants.AB_INSTALL_NAME, null);
+        String url = prefs.getString(Constants.AB_INSTALL_URL, null);
+        notifyOngoingABOTA(context, -1, STATUS_PREPARING_ZIP);
+
+        try {
+            boolean staged = url != null ? stageFromUrl(context, url)
+                    : stageFromFile(context, name);
+            if (staged) {
+                applyStaged(context);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "IOException caught!", e);
+            failInstall(context, -1);
+        } catch (GeneralSecurityException e) {
+            Log.e(TAG, "Verification failed", e);
+            failInstall(context, -1);
+        }
+    }
+
+    private static boolean stageFromFile(Context context, String name)
+            throws IOException, GeneralSecurityException {
+        File updatePackage = new File(UPDATE_PACKAGE_DIR, name);
+        File inputPackage = new File(Utils.makeUpdateFolder(context), name);
+
+        PackageMetadata metadata = PackageMetadata.get(inputPackage);
+        if (!metadata.isVerified()) {
+            // Downloaded before verifications were recorded
+            RecoverySystem.verifyPackage(inputPackage, null, null);
+            PackageMetadata.setVerified(inputPackage, null);
+        }
+        long payloadOffset = metadata.getPayloadOffset();
+        long payloadSize = metadata.getPayloadSize();
+        if (payloadOffset < 0) {
+            // It must be stored uncompressed
+            throw new IOException("No usable payload in " + inputPackage);
+        }
+        Log.d(TAG, "Found offset for payload.bin at: " + payloadOffset);
+
+        // Copied before the process died, it only gets its name once complete
+        File payload = new File(UPDATE_PACKAGE_DIR, PAYLOAD_FILE);
+        if (payload.isFile() && payload.length() == payloadSize) {
+            Log.d(TAG, "Reusing the staged payload");
+            return setStaged(context, "file://" + payload.getPath(), 0, payloadSize,
+                    metadata.getPayloadProperties());
         }
 
+        deleteStagingDir(context);
+        File path = new File(UPDATE_PACKAGE_DIR);
         path.mkdir();
         path.setReadable(true, false);
         path.setExecutable(true, false);
 
-        String updatePackagePath = updatePackageDir + "/" + mFilename;
-        String inputPackagePath = Utils.makeUpdateFolder(mContext).getPath() + "/" + mFilename;
+        // Hand update_engine the package itself, or else just its payload
+        String payloadPath;
+        if (linkPackage(context, inputPackage, updatePackage)) {
+            payloadPath = updatePackage.getPath();
+        } else {
+            if (new StatFs(path.getPath()).getAvailableBytes() < payloadSize) {
+                // Rather than filling up the partition
+                throw new IOException("Not enough space to copy the payload");
+            }
+            File tmpPayload = new File(UPDATE_PACKAGE_DIR, PAYLOAD_FILE
+                    + Constants.DOWNLOAD_TMP_EXT);
+            Utils.copyRange(inputPackage.getPath(), tmpPayload.getPath(), payloadOffset,
+                    payloadSize);
+            tmpPayload.setReadable(true, false);
+            if (!tmpPayload.renameTo(payload)) {
+                throw new IOException("Unable to stage " + payload);
+            }
+            payloadPath = payload.getPath();
+            payloadOffset = 0;
+        }
+
+        return setStaged(context, "file://" + payloadPath, payloadOffset, payloadSize,
+                metadata.getPayloadProperties());
+    }
+
+    /**
+     * Let update_engine download the payload itself, installing while it downloads.
+     * Only the central directory and a few headers are fetched here. The package
+     * can't be verified beforehand, update_engine checks the signature of the
+     * payload and the hashes in its properties.
+     */
+    private static boolean stageFromUrl(Context context, String url) throws IOException {
+        PackageMetadata metadata;
+        String resolvedUrl;
+        HttpRangeSource source = new HttpRangeSource(url, Utils.getUserAgentString(context));
+        try (ZipIndex zip = ZipIndex.open(source)) {
+            metadata = PackageMetadata.get(zip, url, source.size());
+            // The offset is only valid for this copy of the file
+            resolvedUrl = source.getResolvedUrl();
+        }
+        if (!metadata.isABUpdate() || metadata.getPayloadOffset() < 0) {
+            throw new IOException("No usable payload in " + url);
+        }
+        Log.d(TAG, "Streaming payload.bin from " + resolvedUrl + " at: "
+                + metadata.getPayloadOffset());
+
+        return setStaged(context, resolvedUrl, metadata.getPayloadOffset(),
+                metadata.getPayloadSize(), metadata.getPayloadProperties());
+    }
+
+    /**
+     * Record what to hand over to update_engine
+     *
+     * @return false if the install was cancelled meanwhile
+     */
+    private static synchronized boolean setStaged(Context context, String payloadUrl,
+            long offset, long size, String[] properties) {
+        if (getInstallState(context) != STATE_STAGING) {
+            return false;
+        }
+        getPrefs(context).edit()
+                .putInt(Constants.AB_INSTALL_STATE, STATE_STAGED)
+                .putString(Constants.AB_INSTALL_PAYLOAD_URL, payloadUrl)
+                .putLong(Constants.AB_INSTALL_PAYLOAD_OFFSET, offset)
+                .putLong(Constants.AB_INSTALL_PAYLOAD_SIZE, size)
+                .putString(Constants.AB_INSTALL_PAYLOAD_PROPERTIES,
+                        TextUtils.join("\n", properties))
+                .commit();
+        return true;
+    }
+
+    private static void applyStaged(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        String payloadUrl = prefs.getString(Constants.AB_INSTALL_PAYLOAD_URL, null);
+        long offset = prefs.getLong(Constants.AB_INSTALL_PAYLOAD_OFFSET, 0);
+        long size = prefs.getLong(Constants.AB_INSTALL_PAYLOAD_SIZE, 0);
+        String properties = prefs.getString(Constants.AB_INSTALL_PAYLOAD_PROPERTIES, "");
 
         try {
-            Utils.copy(inputPackagePath, updatePackagePath);
-
-            ZipFile zipFile = new ZipFile(updatePackagePath);
-            Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-            long payloadOffset = 0;
-            long offset = 0;
-            List<String> lines = new ArrayList<String>();
-
-            while (zipEntries.hasMoreElements()) {
-                ZipEntry entry = (ZipEntry) zipEntries.nextElement();
-                long fileSize = 0;
-                long extra = entry.getExtra() == null ? 0 : entry.getExtra().length;
-                offset += 30 + entry.getName().length() + extra;
-
-                if (!entry.isDirectory()) {
-                    fileSize = entry.getCompressedSize();
-                    if ("payload.bin".equals(entry.getName())) {
-                        Log.e(TAG, "Found offset for payload.bin at: " + offset);
-                        payloadOffset = offset;
-                    } else if ("payload_properties.txt".equals(entry.getName())) {
-                        BufferedReader reader = new BufferedReader(new InputStreamReader(zipFile.getInputStream(entry)));
-                        String line;
-                        while ((line = reader.readLine()) != null) {
-                            lines.add(line);
-                        }
-                    }
-                }
-                offset += fileSize;
+            UpdateEngine updateEngine = getUpdateEngine(context);
+            sApplied = true;
+            updateEngine.applyPayload(payloadUrl, offset, size,
+                    TextUtils.isEmpty(properties) ? new String[0] : properties.split("\n"));
+        } catch (ServiceSpecificException e) {
+            Log.e(TAG, String.format("Failed to apply payload, ErrorCode: %d", e.errorCode), e);
+            failInstall(context, e.errorCode);
+        }
+    }
+
+    private static void reattachEngine(Context context) {
+        int state = getInstallState(context);
+        if (state == STATE_IDLE) {
+            return;
+        }
+        if (state == STATE_NEEDS_REBOOT) {
+            // update_engine can't be asked, it forgets everything when rebooted
+            if (getBootCount(context) != getPrefs(context).getInt(
+                    Constants.AB_INSTALL_BOOT_COUNT, -1)) {
+                Log.i(TAG, "Rebooted since the update was installed");
+                clearState(context);
+                ((NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE))
+                        .cancel(R.string.installing_package);
             }
+            return;
+        }
+        synchronized (ABOTAService.class) {
+            if (sUpdateEngine != null && sLastStatus >= 0) {
+                // Never lost track, the callback keeps the state up to date
+                return;
+            }
+        }
 
-            UpdateEngine mUpdateEngine = new UpdateEngine();
-            mUpdateEngine.bind(new UpdateEngineCB());
-            mUpdateEngine.applyPayload("file://" + updatePackagePath, payloadOffset, 0, lines.toArray(new String[lines.size()]));
+        // update_engine reports its status as soon as it's bound
+        getUpdateEngine(context);
+        try {
+            sStatusReceived.await(BIND_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        int status = sLastStatus;
+        boolean busy = status == UpdateStatusConstants.UPDATE_AVAILABLE
+                || status == UpdateStatusConstants.DOWNLOADING
+                || status == UpdateStatusConstants.VERIFYING
+                || status == UpdateStatusConstants.FINALIZING;
+        Log.i(TAG, "Reattaching in state " + state + ", update_engine status " + status);
+
+        if (status == UpdateStatusConstants.UPDATED_NEED_REBOOT) {
+            // Possibly finished while we were away
+            completeInstall(context);
+            return;
+        }
+        if (status < 0 && state != STATE_STAGING) {
+            // Can't tell, left to the callback or the next reattach
+            Log.w(TAG, "No status from update_engine yet");
+            return;
+        }
+        switch (state) {
+            case STATE_STAGING:
+                // Whatever was fully staged is kept, verifications are remembered
+                stage(context);
+                break;
+            case STATE_STAGED:
+                if (!busy && !sApplied) {
+                    applyStaged(context);
+                }
+                break;
+            case STATE_APPLYING:
+            case STATE_SUSPENDED:
+            case STATE_FINALIZING:
+                if (!busy) {
+                    // The outcome was lost along with the process
+                    Log.e(TAG, "update_engine stopped while we were away");
+                    failInstall(context, -1);
+                }
+                break;
+        }
+    }
 
-        } catch (IOException e) {
-            errorCaught = true;
-            Log.e(TAG, "IOException caught!", e);
-            Intent errorIntent = new Intent(ACTION_UPDATE_INSTALL_ERRORED);
-            sendBroadcast(errorIntent);
+    private static void suspend(Context context) {
+        if (!moveState(context, STATE_APPLYING, STATE_SUSPENDED)) {
+            return;
+        }
+        try {
+            getUpdateEngine(context).suspend();
+            notifyOngoingABOTA(context, sLastProgress, STATUS_SUSPENDED);
         } catch (ServiceSpecificException e) {
-            errorCaught = true;
-            Log.e(TAG, String.format("Failed to apply payload, ErrorCode: %d", e.errorCode), e);
-            Intent errorIntent = new Intent(ACTION_UPDATE_INSTALL_ERRORED);
-            errorIntent.putExtra(EXTRA_ERROR_CODE, e.errorCode);
-            sendBroadcast(errorIntent);
+            Log.e(TAG, "Unable to suspend the update", e);
+            moveState(context, STATE_SUSPENDED, STATE_APPLYING);
+        }
+    }
+
+    private static void resume(Context context) {
+        if (!moveState(context, STATE_SUSPENDED, STATE_APPLYING)) {
+            return;
+        }
+        try {
+            getUpdateEngine(context).resume();
+            notifyOngoingABOTA(context, sLastProgress, UpdateStatusConstants.DOWNLOADING);
+        } catch (ServiceSpecificException e) {
+            Log.e(TAG, "Unable to resume the update", e);
+            moveState(context, STATE_APPLYING, STATE_SUSPENDED);
+        }
+    }
+
+    private static void cancel(Context context) {
+        synchronized (ABOTAService.class) {
+            int state = getInstallState(context);
+            if (state == STATE_IDLE || state > STATE_SUSPENDED) {
+                // Too late once the new slot is being finalized
+                return;
+            }
+            // The error update_engine reports for it is expected
+            clearState(context);
+        }
+        try {
+            getUpdateEngine(context).cancel();
+        } catch (ServiceSpecificException e) {
+            Log.w(TAG, "Nothing to cancel", e);
+        }
+        deleteStagingDir(context);
+        ((NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE))
+                .cancel(R.string.installing_package);
+        context.sendBroadcast(new Intent(ACTION_UPDATE_INSTALL_CANCELLED));
+    }
+
+    private static void completeInstall(Context context) {
+        String name;
+        synchronized (ABOTAService.class) {
+            int state = getInstallState(context);
+            if (state == STATE_IDLE || state == STATE_NEEDS_REBOOT) {
+                return;
+            }
+            name = getPrefs(context).getString(Constants.AB_INSTALL_NAME, null);
+            getPrefs(context).edit()
+                    .putInt(Constants.AB_INSTALL_STATE, STATE_NEEDS_REBOOT)
+                    .putInt(Constants.AB_INSTALL_BOOT_COUNT, getBootCount(context))
+                    .commit();
+        }
+        deleteStagingDir(context);
+
+        Intent successIntent = new Intent(ACTION_UPDATE_INSTALL_FINISHED);
+        successIntent.putExtra(EXTRA_ZIP_NAME, name);
+        context.sendBroadcast(successIntent);
+    }
+
+    private static void failInstall(Context context, int errorCode) {
+        synchronized (ABOTAService.class) {
+            if (getInstallState(context) == STATE_IDLE) {
+                // Cancelled
+                return;
+            }
+            clearState(context);
+        }
+        deleteStagingDir(context);
+        notifyOngoingABOTA(context, -1, errorCode);
+
+        Intent errorIntent = new Intent(ACTION_UPDATE_INSTALL_ERRORED);
+        errorIntent.putExtra(EXTRA_ERROR_CODE, errorCode);
+        context.sendBroadcast(errorIntent);
+    }
+
+    /**
+     * Move to a later state, unless the install is over. Only
+     * {@link #completeInstall} moves to STATE_NEEDS_REBOOT.
+     */
+    private static synchronized void advanceState(Context context, int state) {
+        int current = getInstallState(context);
+        if (current != STATE_IDLE && current < state) {
+            getPrefs(context).edit().putInt(Constants.AB_INSTALL_STATE, state).commit();
+        }
+    }
+
+    private static synchronized boolean moveState(Context context, int from, int to) {
+        if (getInstallState(context) != from) {
+            return false;
+        }
+        getPrefs(context).edit().putInt(Constants.AB_INSTALL_STATE, to).commit();
+        return true;
+    }
+
+    private static synchronized void clearState(Context context) {
+        sApplied = false;
+        getPrefs(context).edit()
+                .remove(Constants.AB_INSTALL_STATE)
+                .remove(Constants.AB_INSTALL_NAME)
+                .remove(Constants.AB_INSTALL_URL)
+                .remove(Constants.AB_INSTALL_PAYLOAD_URL)
+                .remove(Constants.AB_INSTALL_PAYLOAD_OFFSET)
+                .remove(Constants.AB_INSTALL_PAYLOAD_SIZE)
+                .remove(Constants.AB_INSTALL_PAYLOAD_PROPERTIES)
+                .remove(Constants.AB_INSTALL_BOOT_COUNT)
+                .commit();
+    }
+
+    /**
+     * Show the notification of the install in progress, after something else
+     * took its place
+     */
+    private static void notifyInstallState(Context context) {
+        switch (getInstallState(context)) {
+            case STATE_STAGING:
+            case STATE_STAGED:
+                notifyOngoingABOTA(context, -1, STATUS_PREPARING_ZIP);
+                break;
+            case STATE_APPLYING:
+                notifyOngoingABOTA(context, sLastProgress, UpdateStatusConstants.DOWNLOADING);
+                break;
+            case STATE_SUSPENDED:
+                notifyOngoingABOTA(context, sLastProgress, STATUS_SUSPENDED);
+                break;
+            case STATE_FINALIZING:
+                notifyOngoingABOTA(context, sLastProgress, UpdateStatusConstants.FINALIZING);
+                break;
+            case STATE_NEEDS_REBOOT:
+                notifyOngoingABOTA(context, 100, UpdateStatusConstants.UPDATED_NEED_REBOOT);
+                break;
+        }
+    }
+
+    private static int getBootCount(Context context) {
+        return Settings.Global.getInt(context.getContentResolver(),
+                Settings.Global.BOOT_COUNT, -1);
+    }
+
+    private static synchronized UpdateEngine getUpdateEngine(Context context) {
+        if (sUpdateEngine == null) {
+            sStatusReceived = new CountDownLatch(1);
+            sLastStatus = -1;
+            sUpdateEngine = new UpdateEngine();
+            sUpdateEngine.bind(new UpdateEngineCB(context.getApplicationContext()));
+        }
+        return sUpdateEngine;
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context);
+    }
+
+    private static void deleteStagingDir(Context context) {
+        File path = new File(UPDATE_PACKAGE_DIR);
+        File[] files = path.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                File source = new File(Utils.makeUpdateFolder(context), file.getName());
+                if (isSameFile(file, source)) {
+                    file.delete();
+                    unsharePackage(source);
+                }
+            }
+        }
+        if (path.exists()) {
+            Utils.deleteDir(path);
+        }
+    }
+
+    /**
+     * Make the package available to update_engine under the staging folder
+     * without copying it.
+     *
+     * The link shares its inode with the download, so while it's staged the
+     * download carries the label of the staging folder and is readable by
+     * everyone. That's accepted: the package is signed and public, and the
+     * folder it's downloaded to can't be entered by other apps. Both are
+     * put back by {@link #unsharePackage} when the staging folder is deleted.
+     */
+    private static boolean linkPackage(Context context, File source, File target) {
+        boolean linked = false;
+        try {
+            Os.link(source.getPath(), target.getPath());
+            // The label belongs to the file, give it the one of the staging folder
+            if (SELinux.restorecon(target)) {
+                target.setReadable(true, false);
+                linked = true;
+            } else {
+                Log.d(TAG, "Can't relabel " + target + ", copying the payload");
+                target.delete();
+            }
+        } catch (ErrnoException e) {
+            Log.d(TAG, "Can't link " + source + ", copying the payload", e);
+        }
+        // Tells SpacePlanner whether to make room for a copy next time
+        getPrefs(context).edit().putBoolean(Constants.AB_PACKAGE_LINK_FAILED, !linked).apply();
+        return linked;
+    }
+
+    /**
+     * Give a package that was linked to the staging folder its own label and
+     * mode back
+     */
+    private static void unsharePackage(File source) {
+        source.setReadable(false, false);
+        source.setReadable(true, true);
+        if (!SELinux.restorecon(source)) {
+            // Only readable by us and update_engine until the next relabel
+            Log.w(TAG, "Can't relabel " + source);
+        }
+    }
+
+    private static boolean isSameFile(File a, File b) {
+        try {
+            StructStat statA = Os.stat(a.getPath());
+            StructStat statB = Os.stat(b.getPath());
+            return statA.st_dev == statB.st_dev && statA.st_ino == statB.st_ino;
+        } catch (ErrnoException e) {
+            return false;
         }
     }
 
@@ -227,7 +736,26 @@ public class ABOTAService extends IntentService {
                 builder.setProgress(100, progress, false)
                        .setOngoing(true)
                        .setContentText(String.format("%1$d%%", progress))
-                       .setContentTitle(context.getString(R.string.installing_package));
+                       .setContentTitle(context.getString(R.string.installing_package))
+                       .addAction(android.R.drawable.ic_media_pause,
+                           context.getString(R.string.not_action_suspend),
+                           createActionPendingIntent(context, ACTION_SUSPEND))
+                       .addAction(android.R.drawable.ic_menu_close_clear_cancel,
+                           context.getString(R.string.not_action_cancel),
+                           createActionPendingIntent(context, ACTION_CANCEL));
+                break;
+
+            case STATUS_SUSPENDED:
+                builder.setProgress(100, progress, false)
+                       .setOngoing(true)
+                       .setContentText(String.format("%1$d%%", progress))
+                       .setContentTitle(context.getString(R.string.installing_package_suspended))
+                       .addAction(android.R.drawable.ic_media_play,
+                           context.getString(R.string.not_action_resume),
+                           createActionPendingIntent(context, ACTION_RESUME))
+                       .addAction(android.R.drawable.ic_menu_close_clear_cancel,
+                           context.getString(R.string.not_action_cancel),
+                           createActionPendingIntent(context, ACTION_CANCEL));
                 break;
 
             case UpdateStatusConstants.FINALIZING:
@@ -273,6 +801,14 @@ public class ABOTAService extends IntentService {
                 .notify(R.string.installing_package, builder.build());
     }
 
+    private static PendingIntent createActionPendingIntent(Context context, String action) {
+        Intent intent = new Intent(context, ABOTAService.class);
+        intent.setAction(action);
+
+        return PendingIntent.getService(context, 0,
+                intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
     private static PendingIntent createRebootPendingIntent(Context context) {
         Intent rebootIntent = new Intent(context, DownloadReceiver.class);
         rebootIntent.setAction(DownloadReceiver.ACTION_INSTALL_REBOOT);
@@ -280,12 +816,4 @@ public class ABOTAService extends IntentService {
         return PendingIntent.getBroadcast(context, 0,
                 rebootIntent, PendingIntent.FLAG_ONE_SHOT | PendingIntent.FLAG_UPDATE_CURRENT);
     }
-
-    public static boolean isABUpdateRunning() {
-        return mABUpdateRunning;
-    }
-
-    public static void setABUpdateRunning(boolean status) {
-        mABUpdateRunning = status;
-    }
 }
@@ -13,8 +13,13 @@ import android.app.DownloadManager;
 import android.app.IntentService;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.os.ParcelFileDescriptor;
+import android.preference.PreferenceManager;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
 import com.cyanogenmod.updater.R;
@@ -22,6 +27,8 @@ import com.cyanogenmod.updater.UpdatesActivity;
 import com.cyanogenmod.updater.UpdateApplication;
 import com.cyanogenmod.updater.UpdatesSettings;
 import com.cyanogenmod.updater.misc.Constants;
+import com.cyanogenmod.updater.misc.PackageMetadata;
+import com.cyanogenmod.updater.misc.UpdateCatalog;
 import com.cyanogenmod.updater.receiver.DownloadNotifier;
 import com.cyanogenmod.updater.utils.Utils;
 
@@ -35,6 +42,11 @@ public class DownloadCompleteIntentService extends IntentService {
 
     private static final String TAG = "DownloadComplete";
 
+    // Set for in-app downloads, the path of the downloaded file
+    public static final String EXTRA_DOWNLOAD_PATH = "download_path";
+    // Set when the download was checked against it, the hex SHA-256 of the file
+    public static final String EXTRA_SHA256 = "sha256";
+
     private DownloadManager mDm;
 
     @Override
@@ -57,26 +69,54 @@ public class DownloadCompleteIntentService extends IntentService {
         long id = intent.getLongExtra(Constants.DOWNLOAD_ID, -1);
         final String destName = intent.getStringExtra(Constants.DOWNLOAD_NAME);
 
+        try {
+            processDownload(intent, id, destName);
+        } finally {
+            // Only forget the download once it's fully dealt with
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+            if (prefs.getLong(Constants.DOWNLOAD_ID, -1) == id) {
+                prefs.edit()
+                        .remove(Constants.DOWNLOAD_ID)
+                        .remove(Constants.DOWNLOAD_NAME)
+                        .apply();
+            }
+        }
+    }
+
+    private void processDownload(Intent intent, long id, String destName) {
         Intent updateIntent = new Intent(this, UpdatesActivity.class);
         updateIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK |
                 Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
 
-        int status = fetchDownloadStatus(id);
-        if (status == DownloadManager.STATUS_SUCCESSFUL) {
-            String destPath = Utils.makeUpdateFolder(getApplicationContext()).getPath() + "/"
-                    + destName;
-            File destFileTmp = new File(destPath + Constants.DOWNLOAD_TMP_EXT);
+        String destPath = Utils.makeUpdateFolder(getApplicationContext()).getPath() + "/"
+                + destName;
+        File destFileTmp = new File(destPath + Constants.DOWNLOAD_TMP_EXT);
 
-            try (
-                FileOutputStream outStream = new FileOutputStream(destFileTmp);
-
-                ParcelFileDescriptor file = mDm.openDownloadedFile(id);
-                FileInputStream inStream = new FileInputStream(file.getFileDescriptor());
+        if (intent.hasExtra(EXTRA_DOWNLOAD_PATH)) {
+            // Downloaded in-app, already in the updates folder
+            File partFile = new File(intent.getStringExtra(EXTRA_DOWNLOAD_PATH));
+            if (!partFile.renameTo(destFileTmp)) {
+                Log.e(TAG, "Could not move " + partFile + " to " + destFileTmp);
+                partFile.delete();
+                displayErrorResult(updateIntent, R.string.unable_to_download_file);
+                return;
+            }
+        } else {
+            int status = fetchDownloadStatus(id);
+            if (status == DownloadManager.STATUS_FAILED) {
+                Log.e(TAG, "Download failed");
+                // The download failed, reset
+                mDm.remove(id);
+                displayErrorResult(updateIntent, R.string.unable_to_download_file);
+                return;
+            } else if (status != DownloadManager.STATUS_SUCCESSFUL) {
+                return;
+            }
 
-                FileChannel inChannel = inStream.getChannel();
-                FileChannel outChannel = outStream.getChannel();
-            ) {
-                inChannel.transferTo(0, file.getStatSize(), outChannel);
+            try (ParcelFileDescriptor file = mDm.openDownloadedFile(id)) {
+                if (!adoptDownloadedFile(file, destFileTmp)) {
+                    copyDownloadedFile(file, destFileTmp);
+                }
             } catch (IOException e) {
                 Log.e(TAG, "Copy of download failed", e);
                 displayErrorResult(updateIntent, R.string.unable_to_download_file);
@@ -87,49 +127,102 @@ public class DownloadCompleteIntentService extends IntentService {
             } finally {
                 mDm.remove(id);
             }
+        }
 
-            if (!destFileTmp.exists()) {
+        if (!destFileTmp.exists()) {
+            // The download was probably stopped. Exit silently
+            Log.d(TAG, "File not found, can't verify it");
+            return;
+        }
+
+        // Check the signature of the downloaded file
+        try {
+            android.os.RecoverySystem.verifyPackage(destFileTmp, null, null);
+        } catch (Exception e) {
+            Log.e(TAG, "Verification failed", e);
+            if (destFileTmp.exists()) {
+                destFileTmp.delete();
+                displayErrorResult(updateIntent, R.string.verification_failed);
+            } else {
                 // The download was probably stopped. Exit silently
-                Log.d(TAG, "File not found, can't verify it");
-                return;
+                Log.e(TAG, "Error while verifying the file", e);
             }
+            return;
+        }
+
+        File destFile = new File(destPath);
+        if (destFile.exists()) {
+            destFile.delete();
+        }
+        if (!destFileTmp.exists()) {
+            // The download was probably stopped. Exit silently
+            Log.d(TAG, "File not found, can't rename it");
+            return;
+        }
+        destFileTmp.renameTo(destFile);
+        try {
+            PackageMetadata.setVerified(destFile, intent.getStringExtra(EXTRA_SHA256));
+        } catch (IOException e) {
+            // Not fatal, it's looked at again when installing
+            Log.e(TAG, "Unable to read " + destFile, e);
+        }
+        UpdateCatalog.getInstance(this).invalidateDownloads();
+
+        // We passed. Bring the main app to the foreground and trigger download completed
+        updateIntent.putExtra(UpdatesSettings.EXTRA_FINISHED_DOWNLOAD_ID, id);
+        updateIntent.putExtra(UpdatesSettings.EXTRA_FINISHED_DOWNLOAD_PATH,
+                destPath);
+        displaySuccessResult(updateIntent, destFile);
+    }
 
-            // Check the signature of the downloaded file
+    /**
+     * Move the file DownloadManager wrote into the updates folder, if it's on
+     * the same filesystem and we are allowed to
+     */
+    private boolean adoptDownloadedFile(ParcelFileDescriptor file, File dest) {
+        String path;
+        try {
+            path = Os.readlink("/proc/self/fd/" + file.getFd());
+        } catch (ErrnoException e) {
+            return false;
+        }
+        try {
+            Os.rename(path, dest.getAbsolutePath());
+        } catch (ErrnoException e) {
+            Log.d(TAG, "Can't move " + path + ", copying it", e);
+            return false;
+        }
+        try {
+            Os.access(dest.getAbsolutePath(), OsConstants.R_OK);
+            return true;
+        } catch (ErrnoException e) {
+            // Still owned by DownloadManager, put it back and make our own copy
             try {
-                android.os.RecoverySystem.verifyPackage(destFileTmp, null, null);
-            } catch (Exception e) {
-                Log.e(TAG, "Verification failed", e);
-                if (destFileTmp.exists()) {
-                    destFileTmp.delete();
-                    displayErrorResult(updateIntent, R.string.verification_failed);
-                } else {
-                    // The download was probably stopped. Exit silently
-                    Log.e(TAG, "Error while verifying the file", e);
-                }
-                return;
+                Os.rename(dest.getAbsolutePath(), path);
+            } catch (ErrnoException ee) {
+                Log.e(TAG, "Can't move " + dest + " back", ee);
             }
+            return false;
+        }
+    }
 
-            File destFile = new File(destPath);
-            if (destFile.exists()) {
-                destFile.delete();
-            }
-            if (!destFileTmp.exists()) {
-                // The download was probably stopped. Exit silently
-                Log.d(TAG, "File not found, can't rename it");
-                return;
+    private void copyDownloadedFile(ParcelFileDescriptor file, File dest) throws IOException {
+        try (
+            FileOutputStream outStream = new FileOutputStream(dest);
+            FileInputStream inStream = new FileInputStream(file.getFileDescriptor());
+
+            FileChannel inChannel = inStream.getChannel();
+            FileChannel outChannel = outStream.getChannel();
+        ) {
+            long size = file.getStatSize();
+            long position = 0;
+            while (position < size) {
+                long count = inChannel.transferTo(position, size - position, outChannel);
+                if (count <= 0) {
+                    throw new IOException("Download truncated at " + position);
+                }
+                position += count;
             }
-            destFileTmp.renameTo(destFile);
-
-            // We passed. Bring the main app to the foreground and trigger download completed
-            updateIntent.putExtra(UpdatesSettings.EXTRA_FINISHED_DOWNLOAD_ID, id);
-            updateIntent.putExtra(UpdatesSettings.EXTRA_FINISHED_DOWNLOAD_PATH,
-                    destPath);
-            displaySuccessResult(updateIntent, destFile);
-        } else if (status == DownloadManager.STATUS_FAILED) {
-            Log.e(TAG, "Download failed");
-            // The download failed, reset
-            mDm.remove(id);
-            displayErrorResult(updateIntent, R.string.unable_to_download_file);
         }
     }
 
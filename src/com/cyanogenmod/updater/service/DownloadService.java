@@ -11,12 +11,16 @@ package com.cyanogenmod.updater.service;
 
 import android.app.DownloadManager;
 import android.app.IntentService;
+import android.app.job.JobInfo;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
+import android.net.wifi.WifiManager;
 import android.os.Parcelable;
+import android.os.PowerManager;
 import android.preference.PreferenceManager;
+import android.text.format.Formatter;
 import android.util.Log;
 
 import com.android.volley.Response;
@@ -24,28 +28,155 @@ import com.android.volley.VolleyError;
 import com.android.volley.VolleyLog;
 
 import com.cyanogenmod.updater.R;
+import com.cyanogenmod.updater.UpdatesActivity;
+import com.cyanogenmod.updater.download.DownloadJournal;
+import com.cyanogenmod.updater.download.DownloadProgress;
+import com.cyanogenmod.updater.download.RateLimiter;
+import com.cyanogenmod.updater.download.SegmentedDownloader;
+import com.cyanogenmod.updater.misc.BuildOrder;
 import com.cyanogenmod.updater.misc.Constants;
+import com.cyanogenmod.updater.misc.UpdateCatalog;
 import com.cyanogenmod.updater.misc.UpdateInfo;
+import com.cyanogenmod.updater.receiver.DownloadNotifier;
 import com.cyanogenmod.updater.receiver.DownloadReceiver;
+import com.cyanogenmod.updater.utils.SpacePlanner;
+import com.cyanogenmod.updater.utils.UpdateFilter;
 import com.cyanogenmod.updater.utils.Utils;
 
 import org.json.JSONObject;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class DownloadService extends IntentService
         implements Response.Listener<JSONObject>, Response.ErrorListener {
     private static final String TAG = DownloadService.class.getSimpleName();
 
     private static final String EXTRA_UPDATE_INFO = "update_info";
+    private static final String EXTRA_METERED_ALLOWED = "metered_allowed";
+
+    private static final String ACTION_RESUME_DOWNLOADS =
+            "com.cyanogenmod.cmupdater.action.RESUME_DOWNLOADS";
+    private static final String ACTION_PREFETCH =
+            "com.cyanogenmod.cmupdater.action.PREFETCH";
+
+    // Ids of in-app downloads are kept clear of the DownloadManager ones
+    private static final long IN_APP_ID_BASE = 1L << 48;
+    private static final AtomicLong sNextInAppId =
+            new AtomicLong(IN_APP_ID_BASE + (System.currentTimeMillis() & 0xffffffffL));
+
+    private static SegmentedDownloader sActiveDownload;
+    private static long sActiveDownloadId = -1;
+    // Whether the active download is a prefetch, and whether it was paused
+    private static boolean sActiveBackground;
+    private static boolean sActivePaused;
+    private static RateLimiter sActiveRateLimiter;
+    // Whether the user is looking at the updates, their download then comes first
+    private static boolean sUiVisible;
 
     private SharedPreferences mPrefs;
     private UpdateInfo mInfo = null;
+    private boolean mBackground;
+    private boolean mMeteredAllowed;
 
-    public static void start(Context context, UpdateInfo ui) {
+    /**
+     * Download an update for the user
+     *
+     * @param meteredAllowed whether the user agreed to use mobile data
+     */
+    public static void start(Context context, UpdateInfo ui, boolean meteredAllowed) {
+        // The user comes first, a prefetch picks up later from where it was
+        pausePrefetch();
         Intent intent = new Intent(context, DownloadService.class);
         intent.putExtra(EXTRA_UPDATE_INFO, (Parcelable) ui);
+        intent.putExtra(EXTRA_METERED_ALLOWED, meteredAllowed);
         context.startService(intent);
     }
 
+    /**
+     * Pick up the in-app downloads that were interrupted
+     */
+    public static void resumeDownloads(Context context) {
+        Intent intent = new Intent(context, DownloadService.class);
+        intent.setAction(ACTION_RESUME_DOWNLOADS);
+        context.startService(intent);
+    }
+
+    /**
+     * Download the newest update in the background, only meant to be started
+     * by {@link PrefetchJobService}
+     */
+    static void prefetch(Context context) {
+        Intent intent = new Intent(context, DownloadService.class);
+        intent.setAction(ACTION_PREFETCH);
+        context.startService(intent);
+    }
+
+    /**
+     * Stop the running prefetch, keeping what it downloaded so far
+     */
+    static synchronized void pausePrefetch() {
+        if (sActiveDownload != null && sActiveBackground) {
+            sActivePaused = true;
+            sActiveDownload.cancel();
+        }
+    }
+
+    /**
+     * Apply the speed limit preference to the running download
+     */
+    public static synchronized void updateRateLimit(Context context) {
+        if (sActiveRateLimiter != null) {
+            sActiveRateLimiter.setRate(getRateLimit(context, sActiveBackground || !sUiVisible));
+        }
+    }
+
+    /**
+     * Tell whether the updates are shown. Downloads only get the user's
+     * limit meanwhile, the background one otherwise.
+     */
+    public static synchronized void setUiVisible(Context context, boolean visible) {
+        sUiVisible = visible;
+        updateRateLimit(context);
+    }
+
+    /**
+     * Get the speed limit of a download in bytes per second, 0 for none
+     */
+    private static long getRateLimit(Context context, boolean background) {
+        long limit = PreferenceManager.getDefaultSharedPreferences(context)
+                .getInt(Constants.DOWNLOAD_RATE_LIMIT_PREF, 0);
+        if (background) {
+            // Leave room for whatever the user is doing
+            limit = limit > 0 ? limit / 2
+                    : context.getResources().getInteger(R.integer.conf_background_download_rate);
+        }
+        return limit * 1024;
+    }
+
+    public static boolean isInAppDownload(long downloadId) {
+        return downloadId >= IN_APP_ID_BASE;
+    }
+
+    /**
+     * Get the in-app download with the given id, null if it's not the last one
+     * started in this process
+     */
+    public static synchronized SegmentedDownloader getActiveDownload(long downloadId) {
+        return downloadId == sActiveDownloadId ? sActiveDownload : null;
+    }
+
+    public static synchronized boolean cancelDownload(long downloadId) {
+        if (downloadId != sActiveDownloadId || sActiveDownload == null) {
+            return false;
+        }
+        sActiveDownload.cancel();
+        return true;
+    }
+
     public DownloadService() {
         super(TAG);
     }
@@ -53,17 +184,35 @@ public class DownloadService extends IntentService
     @Override
     protected void onHandleIntent(Intent intent) {
         mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
+        mBackground = false;
+        mMeteredAllowed = false;
+
+        if (ACTION_RESUME_DOWNLOADS.equals(intent.getAction())) {
+            resumeDownloads();
+            return;
+        }
+        if (ACTION_PREFETCH.equals(intent.getAction())) {
+            PrefetchJobService.onPrefetchFinished(prefetch());
+            return;
+        }
+
         mInfo = intent.getParcelableExtra(EXTRA_UPDATE_INFO);
+        mMeteredAllowed = intent.getBooleanExtra(EXTRA_METERED_ALLOWED, false)
+                || mPrefs.getBoolean(Constants.IGNORE_MOBILE_DATA_WARNING_PREF, false);
 
         if (mInfo == null) {
             Log.e(TAG, "Intent UpdateInfo extras were null");
             return;
         }
 
-        downloadFullZip();
+        if (getResources().getBoolean(R.bool.conf_segmented_download)) {
+            downloadInApp();
+        } else {
+            downloadFullZip();
+        }
     }
 
-    private long enqueueDownload(String downloadUrl) {
+    private long enqueueDownload(String downloadUrl, boolean background) {
         DownloadManager.Request request = new DownloadManager.Request(Uri.parse(downloadUrl));
         String userAgent = Utils.getUserAgentString(this);
         if (userAgent != null) {
@@ -73,8 +222,15 @@ public class DownloadService extends IntentService
         request.setAllowedOverRoaming(false);
         request.setVisibleInDownloadsUi(false);
 
-        // TODO: this could/should be made configurable
-        request.setAllowedOverMetered(true);
+        if (background) {
+            // Only when nobody pays for the data or waits for the device
+            request.setAllowedOverMetered(false);
+            request.setRequiresCharging(true);
+            request.setRequiresDeviceIdle(true);
+        } else {
+            // Only if the user was warned before downloading over mobile data
+            request.setAllowedOverMetered(mMeteredAllowed);
+        }
 
         final DownloadManager dm = (DownloadManager) getSystemService(Context.DOWNLOAD_SERVICE);
         return dm.enqueue(request);
@@ -83,7 +239,11 @@ public class DownloadService extends IntentService
     private void downloadFullZip() {
         Log.v(TAG, "Downloading full zip");
 
-        long downloadId = enqueueDownload(mInfo.getDownloadUrl());
+        if (!checkSpace(mInfo.getSize())) {
+            return;
+        }
+
+        long downloadId = enqueueDownload(mInfo.getDownloadUrl(), mBackground);
 
         // Store in shared preferences
         mPrefs.edit()
@@ -98,6 +258,303 @@ public class DownloadService extends IntentService
         sendBroadcast(intent);
     }
 
+    /**
+     * Download the newest update that isn't downloaded yet
+     *
+     * @return whether to try again later
+     */
+    private boolean prefetch() {
+        if (!PrefetchJobService.isRunning()) {
+            // Stopped before we even got to it
+            return false;
+        }
+        if (mPrefs.getLong(Constants.DOWNLOAD_ID, -1) >= 0) {
+            Log.d(TAG, "A download is in progress, not prefetching");
+            return false;
+        }
+        UpdateCatalog catalog = UpdateCatalog.getInstance(this);
+        LinkedList<UpdateInfo> updates = catalog.getAvailableUpdates();
+        for (Iterator<UpdateInfo> it = updates.iterator(); it.hasNext(); ) {
+            if (!it.next().isNewerThanInstalled()) {
+                it.remove();
+            }
+        }
+        if (updates.isEmpty()) {
+            return false;
+        }
+        Collections.sort(updates, BuildOrder.NEWEST_FIRST);
+        mInfo = updates.getFirst();
+        String fileName = mInfo.getFileName();
+        String previous = mPrefs.getString(Constants.PREFETCH_NAME, null);
+        if (previous != null && !previous.equals(fileName)) {
+            // Superseded, a newer build came out since
+            File updateFolder = Utils.makeUpdateFolder(this);
+            new File(updateFolder, previous + DownloadJournal.EXTENSION).delete();
+            new File(updateFolder, previous + Constants.DOWNLOAD_PART_EXT).delete();
+            mPrefs.edit().remove(Constants.PREFETCH_NAME).apply();
+        }
+        if (catalog.getDownloadedFiles().contains(fileName)) {
+            return false;
+        }
+
+        Log.i(TAG, "Prefetching " + fileName);
+        mBackground = true;
+        if (!getResources().getBoolean(R.bool.conf_segmented_download)) {
+            // DownloadManager waits for the same conditions on its own
+            downloadFullZip();
+            return false;
+        }
+        int state = downloadInApp();
+        return state == SegmentedDownloader.STATE_FAILED && !Utils.isOnline(this);
+    }
+
+    private void resumeDownloads() {
+        if (!Utils.isOnline(this)) {
+            ResumeJobService.schedule(this, JobInfo.NETWORK_TYPE_ANY);
+            return;
+        }
+        boolean waitForUnmetered = false;
+        // Prefetches only go on under the conditions of their job
+        String prefetchName = mPrefs.getString(Constants.PREFETCH_NAME, null);
+        File[] journals = Utils.makeUpdateFolder(this)
+                .listFiles(new UpdateFilter(DownloadJournal.EXTENSION));
+        if (journals == null) {
+            return;
+        }
+        for (File journalFile : journals) {
+            String name = journalFile.getName();
+            String fileName = name.substring(0, name.length() - DownloadJournal.EXTENSION.length());
+            DownloadJournal journal = new DownloadJournal(journalFile);
+            String url = journal.getUrl();
+            if (url == null || new File(journalFile.getParentFile(), fileName).exists()) {
+                journalFile.delete();
+                continue;
+            }
+            if (fileName.equals(prefetchName)) {
+                continue;
+            }
+            if (!Utils.isDownloadAllowed(this, journal.isMeteredAllowed())) {
+                // The user only agreed to the network the download started on
+                Log.i(TAG, "Not resuming the download of " + fileName + " on this network");
+                waitForUnmetered = true;
+                continue;
+            }
+            Log.i(TAG, "Resuming the download of " + fileName);
+            mMeteredAllowed = journal.isMeteredAllowed();
+            mInfo = new UpdateInfo.Builder()
+                    .setFileName(fileName)
+                    .setDownloadUrl(url)
+                    .setSha256(journal.getSha256())
+                    .build();
+            downloadInApp();
+        }
+        if (waitForUnmetered) {
+            ResumeJobService.schedule(this, JobInfo.NETWORK_TYPE_UNMETERED);
+        }
+    }
+
+    /**
+     * @return the final state of the download, one of the SegmentedDownloader STATE_* constants
+     */
+    private int downloadInApp() {
+        Log.v(TAG, "Downloading full zip in-app");
+
+        String fileName = mInfo.getFileName();
+        if (!checkSpace(mInfo.getSize())) {
+            return SegmentedDownloader.STATE_FAILED;
+        }
+        File updateFolder = Utils.makeUpdateFolder(this);
+        File partFile = new File(updateFolder, fileName + Constants.DOWNLOAD_PART_EXT);
+        DownloadJournal journal = new DownloadJournal(
+                new File(updateFolder, fileName + DownloadJournal.EXTENSION));
+        SegmentedDownloader downloader = new SegmentedDownloader(mInfo.getDownloadUrl(),
+                partFile, journal, Utils.getUserAgentString(this),
+                getResources().getInteger(R.integer.conf_segmented_download_connections));
+        downloader.setExpectedSha256(mInfo.getSha256());
+        downloader.setSeedFile(findSeedFile(updateFolder, fileName));
+        // Limited once it's known whether the updates are shown
+        RateLimiter rateLimiter = new RateLimiter(0);
+        downloader.setRateLimiter(rateLimiter);
+        journal.setSha256(mInfo.getSha256());
+        journal.setMeteredAllowed(mMeteredAllowed);
+        final long downloadId = sNextInAppId.getAndIncrement();
+        final DownloadProgress progress = DownloadProgress.getInstance();
+        downloader.setProgressListener(new SegmentedDownloader.ProgressListener() {
+            @Override
+            public void onProgress(int state, long downloadedBytes, long totalBytes) {
+                progress.publish(downloadId, state, downloadedBytes, totalBytes);
+            }
+        });
+        synchronized (DownloadService.class) {
+            sActiveDownload = downloader;
+            sActiveDownloadId = downloadId;
+            sActiveBackground = mBackground;
+            sActivePaused = false;
+            sActiveRateLimiter = rateLimiter;
+            updateRateLimit(this);
+        }
+
+        SharedPreferences.Editor editor = mPrefs.edit()
+                .putLong(Constants.DOWNLOAD_ID, downloadId)
+                .putString(Constants.DOWNLOAD_NAME, fileName);
+        if (mBackground) {
+            editor.putString(Constants.PREFETCH_NAME, fileName);
+        } else {
+            editor.remove(Constants.PREFETCH_NAME);
+        }
+        editor.apply();
+
+        Utils.cancelNotification(this);
+
+        Intent intent = new Intent(DownloadReceiver.ACTION_DOWNLOAD_STARTED);
+        intent.putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, downloadId);
+        sendBroadcast(intent);
+
+        Intent updateIntent = new Intent(this, UpdatesActivity.class);
+        updateIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK |
+                Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
+        startForeground(R.string.not_download_running,
+                DownloadNotifier.createDownloadingNotification(this, updateIntent, fileName));
+
+        PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        PowerManager.WakeLock wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        WifiManager wm = (WifiManager) getApplicationContext()
+                .getSystemService(Context.WIFI_SERVICE);
+        WifiManager.WifiLock wifiLock = wm.createWifiLock(WifiManager.WIFI_MODE_FULL, TAG);
+        wakeLock.acquire();
+        wifiLock.acquire();
+        int state;
+        boolean paused;
+        try {
+            state = downloader.download();
+        } finally {
+            wifiLock.release();
+            wakeLock.release();
+            stopForeground(true);
+            synchronized (DownloadService.class) {
+                paused = sActivePaused;
+                sActiveBackground = false;
+                sActivePaused = false;
+                sActiveRateLimiter = null;
+            }
+        }
+
+        if (state == SegmentedDownloader.STATE_SUCCESSFUL) {
+            // The download prefs are cleared once the download is processed
+            journal.delete();
+            Intent completeIntent = new Intent(this, DownloadCompleteIntentService.class);
+            completeIntent.putExtra(Constants.DOWNLOAD_ID, downloadId);
+            completeIntent.putExtra(Constants.DOWNLOAD_NAME, fileName);
+            completeIntent.putExtra(DownloadCompleteIntentService.EXTRA_DOWNLOAD_PATH,
+                    partFile.getAbsolutePath());
+            completeIntent.putExtra(DownloadCompleteIntentService.EXTRA_SHA256,
+                    mInfo.getSha256());
+            startService(completeIntent);
+            if (mBackground) {
+                mPrefs.edit().remove(Constants.PREFETCH_NAME).apply();
+            }
+            return state;
+        }
+
+        mPrefs.edit()
+                .remove(Constants.DOWNLOAD_ID)
+                .remove(Constants.DOWNLOAD_NAME)
+                .apply();
+
+        if (paused) {
+            Log.i(TAG, "Prefetch of " + fileName + " paused");
+            return state;
+        }
+
+        if (downloader.isOutOfSpace()) {
+            // Whatever was reserved is of no use
+            journal.delete();
+            partFile.delete();
+            checkSpace(downloader.getTotalBytes());
+            return state;
+        }
+
+        if (downloader.isCorrupted()) {
+            // Caught before the signature check even started
+            journal.delete();
+            partFile.delete();
+            if (!mBackground) {
+                DownloadNotifier.notifyDownloadError(this, updateIntent,
+                        R.string.verification_failed);
+            }
+            return state;
+        }
+
+        if (state == SegmentedDownloader.STATE_FAILED && !Utils.isOnline(this)) {
+            // Lost the connection, resumed once it's back. Prefetches have their own job.
+            Log.i(TAG, "Download of " + fileName + " interrupted");
+            if (!mBackground) {
+                ResumeJobService.schedule(this, JobInfo.NETWORK_TYPE_ANY);
+            }
+            return state;
+        }
+
+        if (state == SegmentedDownloader.STATE_FAILED && !mBackground
+                && !Utils.isDownloadAllowed(this, mMeteredAllowed)) {
+            // Moved to a network the user didn't agree to, resumed on an unmetered one
+            Log.i(TAG, "Download of " + fileName + " interrupted, waiting for Wi-Fi");
+            ResumeJobService.schedule(this, JobInfo.NETWORK_TYPE_UNMETERED);
+            return state;
+        }
+
+        journal.delete();
+        partFile.delete();
+        if (mBackground) {
+            mPrefs.edit().remove(Constants.PREFETCH_NAME).apply();
+        } else if (state == SegmentedDownloader.STATE_FAILED) {
+            DownloadNotifier.notifyDownloadError(this, updateIntent,
+                    R.string.unable_to_download_file);
+        }
+        return state;
+    }
+
+    /**
+     * Check that the current update fits, telling the user what's missing if not
+     *
+     * @param size the size of the package, the check is skipped if unknown
+     */
+    private boolean checkSpace(long size) {
+        if (size <= 0) {
+            return true;
+        }
+        long missing = SpacePlanner.getMissingSpace(this, mInfo.getFileName(), size);
+        if (missing <= 0) {
+            return true;
+        }
+        Log.e(TAG, "Not enough space for " + mInfo.getFileName() + ", " + missing
+                + " bytes missing");
+        if (!mBackground) {
+            Intent updateIntent = new Intent(this, UpdatesActivity.class);
+            updateIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK |
+                    Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
+            DownloadNotifier.notifyDownloadError(this, updateIntent, getString(
+                    R.string.not_enough_space, Formatter.formatShortFileSize(this, missing)));
+        }
+        return false;
+    }
+
+    /**
+     * Get the most recent build already downloaded, other than the given one
+     */
+    private static File findSeedFile(File updateFolder, String fileName) {
+        File[] files = updateFolder.listFiles(new UpdateFilter(".zip"));
+        File seed = null;
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().equals(fileName)
+                        && (seed == null || file.lastModified() > seed.lastModified())) {
+                    seed = file;
+                }
+            }
+        }
+        return seed;
+    }
+
     @Override
     public void onErrorResponse(VolleyError error) {
         VolleyLog.e("Error: ", error.getMessage());
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.service;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Downloads the newest update ahead of time, while the device is idle,
+ * charging and on an unmetered network. The download itself runs in
+ * {@link DownloadService}. When the conditions don't hold anymore it is
+ * paused, keeping what was downloaded, and the job runs again later.
+ */
+public class PrefetchJobService extends JobService {
+    private static final String TAG = "PrefetchJobService";
+
+    private static final int JOB_ID = 1;
+
+    private static PrefetchJobService sRunningJob;
+    private JobParameters mParams;
+
+    /**
+     * Schedule the prefetch, unless it's already scheduled or running
+     */
+    public static void schedule(Context context) {
+        JobScheduler js = context.getSystemService(JobScheduler.class);
+        if (js.getPendingJob(JOB_ID) != null) {
+            // Scheduling it again would stop it if it's running
+            return;
+        }
+        JobInfo job = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, PrefetchJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresCharging(true)
+                .setRequiresDeviceIdle(true)
+                .setPersisted(true)
+                .build();
+        js.schedule(job);
+    }
+
+    /**
+     * Cancel the prefetch, pausing it if it's running
+     */
+    public static void cancel(Context context) {
+        context.getSystemService(JobScheduler.class).cancel(JOB_ID);
+    }
+
+    /**
+     * Whether the job is running, its conditions still hold
+     */
+    static synchronized boolean isRunning() {
+        return sRunningJob != null;
+    }
+
+    /**
+     * Called by {@link DownloadService} once it's done with the prefetch
+     */
+    static synchronized void onPrefetchFinished(boolean retry) {
+        if (sRunningJob != null) {
+            sRunningJob.jobFinished(sRunningJob.mParams, retry);
+            sRunningJob = null;
+        }
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        Log.d(TAG, "Conditions met, prefetching");
+        synchronized (PrefetchJobService.class) {
+            mParams = params;
+            sRunningJob = this;
+        }
+        DownloadService.prefetch(this);
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        Log.d(TAG, "Conditions lost, pausing");
+        synchronized (PrefetchJobService.class) {
+            if (sRunningJob == this) {
+                sRunningJob = null;
+            }
+        }
+        DownloadService.pausePrefetch();
+        return true;
+    }
+}
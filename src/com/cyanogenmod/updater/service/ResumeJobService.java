@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.service;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Resumes the interrupted in-app downloads once a network is available, an
+ * unmetered one for those the user didn't agree to continue over mobile data.
+ * Connectivity broadcasts don't reach manifest receivers, so this is what
+ * brings the downloads back after the connection was lost.
+ */
+public class ResumeJobService extends JobService {
+    private static final String TAG = "ResumeJobService";
+
+    private static final int JOB_ID = 2;
+
+    /**
+     * Schedule the resume, unless one that runs as early is already scheduled.
+     * Downloads that can't go on on the network the job runs on schedule it
+     * again for the right one.
+     *
+     * @param networkType JobInfo.NETWORK_TYPE_ANY or JobInfo.NETWORK_TYPE_UNMETERED
+     */
+    static void schedule(Context context, int networkType) {
+        JobScheduler js = context.getSystemService(JobScheduler.class);
+        JobInfo pending = js.getPendingJob(JOB_ID);
+        if (pending != null && (pending.getNetworkType() == JobInfo.NETWORK_TYPE_ANY
+                || pending.getNetworkType() == networkType)) {
+            return;
+        }
+        JobInfo job = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, ResumeJobService.class))
+                .setRequiredNetworkType(networkType)
+                .setPersisted(true)
+                .build();
+        js.schedule(job);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        Log.d(TAG, "Network available, resuming downloads");
+        DownloadService.resumeDownloads(this);
+        // The downloads run in DownloadService
+        return false;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return false;
+    }
+}
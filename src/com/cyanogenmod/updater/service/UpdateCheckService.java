@@ -12,9 +12,10 @@ package com.cyanogenmod.updater.service;
 import android.app.IntentService;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.res.Resources;
-import android.os.Build;
 import android.os.Parcelable;
 import android.os.SystemProperties;
 import android.preference.PreferenceManager;
@@ -23,33 +24,41 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.volley.DefaultRetryPolicy;
-import com.android.volley.Response;
 import com.android.volley.VolleyError;
-import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.RequestFuture;
 
 import com.cyanogenmod.updater.R;
 import com.cyanogenmod.updater.UpdateApplication;
 import com.cyanogenmod.updater.UpdatesActivity;
-import com.cyanogenmod.updater.requests.UpdatesJsonObjectRequest;
+import com.cyanogenmod.updater.requests.UpdatesRequest;
+import com.cyanogenmod.updater.requests.UpdatesResponse;
 import com.cyanogenmod.updater.UpdatesSettings;
+import com.cyanogenmod.updater.misc.BuildOrder;
+import com.cyanogenmod.updater.misc.CatalogDiff;
 import com.cyanogenmod.updater.misc.Constants;
+import com.cyanogenmod.updater.misc.InstalledBuild;
 import com.cyanogenmod.updater.misc.State;
+import com.cyanogenmod.updater.misc.UpdateCatalog;
 import com.cyanogenmod.updater.misc.UpdateInfo;
 import com.cyanogenmod.updater.receiver.DownloadReceiver;
 import com.cyanogenmod.updater.utils.Utils;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.net.URI;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.LinkedList;
-
-public class UpdateCheckService extends IntentService
-        implements Response.ErrorListener, Response.Listener<JSONObject> {
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the whole update check on the IntentService worker thread: the request
+ * is dispatched through Volley, and its response is handed back to the worker
+ * through a {@link RequestFuture}. Parsing happens on the network thread and
+ * diffing, persisting and notifying on the worker, so nothing in the check
+ * path touches the disk from the main thread.
+ */
+public class UpdateCheckService extends IntentService {
 
     private static final String TAG = "UpdateCheckService";
 
@@ -72,6 +81,10 @@ public class UpdateCheckService extends IntentService
     // DefaultRetryPolicy values for Volley
     private static final int UPDATE_REQUEST_TIMEOUT = 5000; // 5 seconds
     private static final int UPDATE_REQUEST_MAX_RETRIES = 3;
+    // Upper bound for the worker to wait for the request, including all retries
+    private static final int UPDATE_CHECK_TIMEOUT = 120000; // 2 minutes
+
+    private volatile RequestFuture<UpdatesResponse> mPendingCheck;
 
     public UpdateCheckService() {
         super("UpdateCheckService");
@@ -81,6 +94,11 @@ public class UpdateCheckService extends IntentService
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (TextUtils.equals(intent.getAction(), ACTION_CANCEL_CHECK)) {
             ((UpdateApplication) getApplicationContext()).getQueue().cancelAll(TAG);
+            RequestFuture<UpdatesResponse> pendingCheck = mPendingCheck;
+            if (pendingCheck != null) {
+                // Cancelling the request doesn't wake up the waiting worker
+                pendingCheck.onErrorResponse(new VolleyError("Update check cancelled"));
+            }
             return START_NOT_STICKY;
         }
 
@@ -94,11 +112,15 @@ public class UpdateCheckService extends IntentService
             Log.i(TAG, "Could not check for updates. Not connected to the network.");
             return;
         }
-        getAvailableUpdates();
+
+        UpdatesResponse response = getAvailableUpdates();
+        if (response != null) {
+            processResponse(response);
+        }
     }
 
     private void recordAvailableUpdates(LinkedList<UpdateInfo> availableUpdates,
-            Intent finishedIntent) {
+            LinkedList<UpdateInfo> realUpdates, Intent finishedIntent) {
 
         if (availableUpdates == null) {
             sendBroadcast(finishedIntent);
@@ -115,6 +137,11 @@ public class UpdateCheckService extends IntentService
         int realUpdateCount = finishedIntent.getIntExtra(EXTRA_REAL_UPDATE_COUNT, 0);
         UpdateApplication app = (UpdateApplication) getApplicationContext();
 
+        if (realUpdateCount != 0 && PreferenceManager.getDefaultSharedPreferences(this)
+                .getBoolean(Constants.PREFETCH_PREF, false)) {
+            PrefetchJobService.schedule(this);
+        }
+
         // Write to log
         Log.i(TAG, "The update check successfully completed at " + d + " and found "
                 + availableUpdates.size() + " updates ("
@@ -143,25 +170,7 @@ public class UpdateCheckService extends IntentService
                     .setLocalOnly(true)
                     .setAutoCancel(true);
 
-            LinkedList<UpdateInfo> realUpdates = new LinkedList<UpdateInfo>();
-            for (UpdateInfo ui : availableUpdates) {
-                if (ui.isNewerThanInstalled()) {
-                    realUpdates.add(ui);
-                }
-            }
-
-            Collections.sort(realUpdates, new Comparator<UpdateInfo>() {
-                @Override
-                public int compare(UpdateInfo lhs, UpdateInfo rhs) {
-                    /* sort by date descending */
-                    long lhsDate = lhs.getDate();
-                    long rhsDate = rhs.getDate();
-                    if (lhsDate == rhsDate) {
-                        return 0;
-                    }
-                    return lhsDate < rhsDate ? 1 : -1;
-                }
-            });
+            Collections.sort(realUpdates, BuildOrder.NEWEST_FIRST);
 
             NotificationCompat.InboxStyle inbox = new NotificationCompat.InboxStyle(builder)
                     .setBigContentTitle(text);
@@ -205,101 +214,131 @@ public class UpdateCheckService extends IntentService
             updateUri = getString(R.string.conf_update_server_url_def);
         }
 
-        String incrementalVersion = SystemProperties.get("ro.build.version.incremental");
-        updateUri += "/v1/" + Utils.getDeviceType() + "/" +
-                Utils.getInstalledBuildType() + "/" + incrementalVersion;
+        InstalledBuild installed = InstalledBuild.get();
+        updateUri += "/v1/" + installed.getDevice() + "/" +
+                installed.getBuildType() + "/" + installed.getIncremental();
 
         return URI.create(updateUri);
     }
 
-    private void getAvailableUpdates() {
+    private UpdatesResponse getAvailableUpdates() {
         // Get the actual ROM Update Server URL
         URI updateServerUri = getServerURI();
-        UpdatesJsonObjectRequest request;
-        request = new UpdatesJsonObjectRequest(updateServerUri.toASCIIString(),
-                Utils.getUserAgentString(this), null, this, this);
+        String url = updateServerUri.toASCIIString();
+        RequestFuture<UpdatesResponse> future = RequestFuture.newFuture();
+        UpdatesRequest request = new UpdatesRequest(url, Utils.getUserAgentString(this),
+                future, future);
+        future.setRequest(request);
         // Improve request error tolerance
         request.setRetryPolicy(new DefaultRetryPolicy(UPDATE_REQUEST_TIMEOUT,
                     UPDATE_REQUEST_MAX_RETRIES, DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
         // Set the tag for the request, reuse logging tag
         request.setTag(TAG);
 
+        // Only revalidate if we still have the catalog the validators belong to
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        if (url.equals(prefs.getString(Constants.UPDATE_CHECK_URL, null))
+                && State.hasState(this)) {
+            request.setValidators(prefs.getString(Constants.UPDATE_CHECK_ETAG, null),
+                    prefs.getString(Constants.UPDATE_CHECK_LAST_MODIFIED, null));
+        }
+
+        mPendingCheck = future;
         ((UpdateApplication) getApplicationContext()).getQueue().add(request);
-    }
 
-    private LinkedList<UpdateInfo> parseJSON(String jsonString) {
-        LinkedList<UpdateInfo> updates = new LinkedList<UpdateInfo>();
         try {
-            JSONObject obj = new JSONObject(jsonString);
-            JSONArray updateList = obj.getJSONArray("response");
-            int length = updateList.length();
-
-            Log.d(TAG, "Got update JSON data with " + length + " entries");
-
-            for (int i = 0; i < length; i++) {
-                if (updateList.isNull(i)) {
-                    continue;
-                }
-                JSONObject item = updateList.getJSONObject(i);
-                UpdateInfo info = parseUpdateJSONObject(item);
-                if (info != null) {
-                    updates.add(info);
-                }
+            return future.get(UPDATE_CHECK_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            if (request.isCanceled()) {
+                Log.i(TAG, "The update check was cancelled");
+            } else {
+                Log.e(TAG, "The update check failed", e);
+                request.cancel();
+                sendBroadcast(new Intent(ACTION_CHECK_FINISHED));
             }
-        } catch (JSONException e) {
-            Log.e(TAG, "Error in JSON result", e);
+            return null;
+        } finally {
+            mPendingCheck = null;
         }
-        return updates;
     }
 
-    private UpdateInfo parseUpdateJSONObject(JSONObject obj) throws JSONException {
-        UpdateInfo ui = new UpdateInfo.Builder()
-                .setFileName(obj.getString("filename"))
-                .setDownloadUrl(obj.getString("url"))
-                .setApiLevel(Build.VERSION.SDK_INT) // TODO: remove this entirely
-                .setBuildDate(obj.getLong("datetime"))
-                .setType(obj.getString("romtype"))
-                .setVersion(obj.getString("version"))
-                .build();
-
-// XXXX Move this into .isCompatible()
-        if (!ui.isNewerThanInstalled()) {
-            Log.d(TAG, "Build " + ui.getFileName() + " is older than the installed build");
-            return null;
+    private void processResponse(UpdatesResponse response) {
+        if (response.isNotModified()) {
+            onCatalogNotModified();
+            return;
         }
 
-        return ui;
-    }
+        UpdateCatalog catalog = UpdateCatalog.getInstance(this);
+        LinkedList<UpdateInfo> lastUpdates = catalog.getAvailableUpdates();
+        LinkedList<UpdateInfo> updates = response.getUpdates();
+
+        CatalogDiff diff = CatalogDiff.compute(lastUpdates, updates);
+        LinkedList<UpdateInfo> realUpdates = new LinkedList<UpdateInfo>();
+        for (UpdateInfo ui : diff.getAdded()) {
+            if (ui.isNewerThanInstalled()) {
+                realUpdates.add(ui);
+            }
+        }
+        for (UpdateInfo ui : diff.getUnchanged()) {
+            if (ui.isNewerThanInstalled()) {
+                realUpdates.add(ui);
+            }
+        }
+        Log.d(TAG, "Catalog changes: " + diff.getAdded().size() + " added, "
+                + diff.getRemoved().size() + " removed, "
+                + diff.getUnchanged().size() + " unchanged");
 
-    @Override
-    public void onErrorResponse(VolleyError volleyError) {
-        VolleyLog.e("Error: ", volleyError.getMessage());
-        VolleyLog.e("Error type: " + volleyError.toString());
         Intent intent = new Intent(ACTION_CHECK_FINISHED);
-        sendBroadcast(intent);
+        intent.putExtra(EXTRA_UPDATE_COUNT, updates.size());
+        intent.putExtra(EXTRA_REAL_UPDATE_COUNT, realUpdates.size());
+        intent.putExtra(EXTRA_NEW_UPDATE_COUNT, diff.getAdded().size());
+
+        // Remember the validators only once the catalog they belong to is on disk
+        final Context context = getApplicationContext();
+        final String url = response.getUrl();
+        final String eTag = response.getETag();
+        final String lastModified = response.getLastModified();
+        PreferenceManager.getDefaultSharedPreferences(this).edit()
+                .remove(Constants.UPDATE_CHECK_URL)
+                .apply();
+        catalog.publish(updates, new Runnable() {
+            @Override
+            public void run() {
+                PreferenceManager.getDefaultSharedPreferences(context).edit()
+                        .putString(Constants.UPDATE_CHECK_URL, url)
+                        .putString(Constants.UPDATE_CHECK_ETAG, eTag)
+                        .putString(Constants.UPDATE_CHECK_LAST_MODIFIED, lastModified)
+                        .apply();
+            }
+        });
+
+        recordAvailableUpdates(updates, realUpdates, intent);
     }
 
-    @Override
-    public void onResponse(JSONObject jsonObject) {
-        LinkedList<UpdateInfo> lastUpdates = State.loadState(this);
-        LinkedList<UpdateInfo> updates = parseJSON(jsonObject.toString());
+    private void onCatalogNotModified() {
+        // The stored catalog is still current, there is nothing new to parse or notify about
+        Date d = new Date();
+        PreferenceManager.getDefaultSharedPreferences(this).edit()
+                .putLong(Constants.LAST_UPDATE_CHECK_PREF, d.getTime())
+                .putBoolean(Constants.BOOT_CHECK_COMPLETED, true)
+                .apply();
+
+        Log.i(TAG, "The update check successfully completed at " + d
+                + ", the update list is unchanged");
 
-        int newUpdates = 0, realUpdates = 0;
+        // Report the same counts as a full check would, from the stored catalog
+        LinkedList<UpdateInfo> updates = UpdateCatalog.getInstance(this).getAvailableUpdates();
+        int realUpdateCount = 0;
         for (UpdateInfo ui : updates) {
-            if (!lastUpdates.contains(ui)) {
-                newUpdates++;
-            }
             if (ui.isNewerThanInstalled()) {
-                realUpdates++;
+                realUpdateCount++;
             }
         }
 
         Intent intent = new Intent(ACTION_CHECK_FINISHED);
         intent.putExtra(EXTRA_UPDATE_COUNT, updates.size());
-        intent.putExtra(EXTRA_REAL_UPDATE_COUNT, realUpdates);
-        intent.putExtra(EXTRA_NEW_UPDATE_COUNT, newUpdates);
-
-        recordAvailableUpdates(updates, intent);
-        State.saveState(this, updates);
+        intent.putExtra(EXTRA_REAL_UPDATE_COUNT, realUpdateCount);
+        intent.putExtra(EXTRA_NEW_UPDATE_COUNT, 0);
+        sendBroadcast(intent);
     }
 }
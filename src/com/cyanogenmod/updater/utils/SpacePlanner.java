@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.utils;
+
+import android.content.Context;
+import android.os.Environment;
+import android.os.StatFs;
+import android.os.SystemProperties;
+import android.os.storage.StorageManager;
+import android.preference.PreferenceManager;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import com.cyanogenmod.updater.R;
+import com.cyanogenmod.updater.misc.Constants;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Works out whether an update fits before downloading it.
+ *
+ * Every copy of the package that will exist at the same time is counted on
+ * the filesystem it lands on: the download in the updates folder, the file
+ * DownloadManager writes in its own cache when it's used, which stays until
+ * it's copied to the updates folder, and on A/B devices the payload staged for
+ * update_engine, unless the package can be linked there: it's on the same
+ * filesystem and the last link didn't fail.
+ * Each filesystem must keep its low storage threshold free on top of that.
+ */
+public class SpacePlanner {
+    private static final String TAG = "SpacePlanner";
+
+    private final Context mContext;
+    // Filesystem to the bytes needed on it and a directory on it
+    private final Map<Long, Long> mNeeded = new HashMap<Long, Long>();
+    private final Map<Long, File> mDirs = new HashMap<Long, File>();
+
+    private SpacePlanner(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Get the space missing to download and install a package
+     *
+     * @param fileName the name of the package
+     * @param size the size of the package in bytes
+     * @return the number of bytes to free up, 0 if the package fits
+     */
+    public static long getMissingSpace(Context context, String fileName, long size) {
+        SpacePlanner planner = new SpacePlanner(context);
+        File updateFolder = Utils.makeUpdateFolder(context);
+
+        // A resumed download has part of its space already
+        File partFile = new File(updateFolder, fileName + Constants.DOWNLOAD_PART_EXT);
+        planner.add(updateFolder, size - getAllocatedSize(partFile));
+
+        if (!context.getResources().getBoolean(R.bool.conf_segmented_download)) {
+            // Without a destination, DownloadManager writes into its provider's
+            // cache on /data. That file is only removed once it's copied over.
+            planner.add(Environment.getDataDirectory(), size);
+        }
+
+        File stagingDir = new File(Constants.AB_PACKAGE_DIR);
+        boolean linkFailed = PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(Constants.AB_PACKAGE_LINK_FAILED, false);
+        if (SystemProperties.getBoolean("ro.build.ab_update", false)
+                && (linkFailed || !isSameFilesystem(stagingDir, updateFolder))) {
+            // Can't be linked, the payload is copied
+            planner.add(stagingDir, size);
+        }
+
+        return planner.getMissingSpace();
+    }
+
+    private void add(File dir, long bytes) {
+        dir = getExistingDir(dir);
+        long device = getDevice(dir);
+        Long needed = mNeeded.get(device);
+        mNeeded.put(device, (needed == null ? 0 : needed) + Math.max(0, bytes));
+        mDirs.put(device, dir);
+    }
+
+    private long getMissingSpace() {
+        StorageManager sm = mContext.getSystemService(StorageManager.class);
+        long missing = 0;
+        for (Map.Entry<Long, Long> entry : mNeeded.entrySet()) {
+            File dir = mDirs.get(entry.getKey());
+            try {
+                long available = new StatFs(dir.getPath()).getAvailableBytes()
+                        - sm.getStorageLowBytes(dir);
+                missing += Math.max(0, entry.getValue() - available);
+            } catch (IllegalArgumentException e) {
+                // Can't tell, let the download find out
+                Log.w(TAG, "Unable to get the free space of " + dir, e);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Directories that don't exist yet are on the filesystem of their parent
+     */
+    private static File getExistingDir(File dir) {
+        while (dir.getParentFile() != null && !dir.exists()) {
+            dir = dir.getParentFile();
+        }
+        return dir;
+    }
+
+    private static boolean isSameFilesystem(File a, File b) {
+        long device = getDevice(getExistingDir(a));
+        return device >= 0 && device == getDevice(getExistingDir(b));
+    }
+
+    private static long getDevice(File dir) {
+        try {
+            return Os.stat(dir.getPath()).st_dev;
+        } catch (ErrnoException e) {
+            return -1;
+        }
+    }
+
+    private static long getAllocatedSize(File file) {
+        try {
+            return Os.stat(file.getPath()).st_blocks * 512;
+        } catch (ErrnoException e) {
+            return 0;
+        }
+    }
+}
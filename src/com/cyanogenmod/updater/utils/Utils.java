@@ -27,7 +27,10 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.cyanogenmod.updater.R;
+import com.cyanogenmod.updater.misc.BuildFileName;
 import com.cyanogenmod.updater.misc.Constants;
+import com.cyanogenmod.updater.misc.InstalledBuild;
+import com.cyanogenmod.updater.misc.PackageMetadata;
 import com.cyanogenmod.updater.misc.UpdateInfo;
 import com.cyanogenmod.updater.service.ABOTAService;
 import com.cyanogenmod.updater.service.UpdateCheckService;
@@ -36,20 +39,13 @@ import com.cyanogenmod.updater.UpdatePreference;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.Arrays;
+import java.nio.channels.FileChannel;
 import java.text.DateFormat;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 public class Utils {
 
@@ -71,38 +67,31 @@ public class Utils {
     }
 
     public static String getDeviceType() {
-        return SystemProperties.get("ro.cm.device");
+        return InstalledBuild.get().getDevice();
     }
 
     public static String getInstalledVersion() {
-        return SystemProperties.get("ro.cm.version").toLowerCase(Locale.ROOT);
+        return InstalledBuild.get().getVersion();
     }
 
     public static String getInstalledVersionName() {
-        return getInstalledVersion().split("-")[0];
+        return InstalledBuild.get().getVersionName();
     }
 
     public static int getInstalledApiLevel() {
-        return SystemProperties.getInt("ro.build.version.sdk", 0);
+        return InstalledBuild.get().getApiLevel();
     }
 
     public static long getInstalledBuildDate() {
-        return SystemProperties.getLong("ro.build.date.utc", 0);
+        return InstalledBuild.get().getBuildDate();
     }
 
     public static String getInstalledBuildType() {
-        return SystemProperties.get(Constants.PROPERTY_CM_RELEASETYPE,
-                Constants.CM_RELEASE_TYPE_DEFAULT).toLowerCase(Locale.ROOT);
+        return InstalledBuild.get().getBuildType();
     }
 
     public static UpdateInfo getInstalledUpdateInfo() {
-        return new UpdateInfo.Builder()
-            .setFileName("lineage-" + getInstalledVersion() + ".zip")
-            .setVersion(getInstalledVersionName())
-            .setApiLevel(getInstalledApiLevel())
-            .setBuildDate(getInstalledBuildDate())
-            .setType(getInstalledBuildType())
-            .build();
+        return InstalledBuild.get().getUpdateInfo();
     }
 
     public static String getDateLocalized(Context context, long unixTimestamp) {
@@ -117,18 +106,7 @@ public class Utils {
     }
 
     public static long getTimestampFromFileName(String fileName) {
-        String[] subStrings = fileName.split("-");
-        if (subStrings.length < 3 || subStrings[2].length() < 8) {
-            Log.e(TAG, "The given filename is not valid: " + fileName);
-            return 0;
-        }
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
-        try {
-            return (dateFormat.parse(subStrings[2]).getTime() / 1000);
-        } catch (ParseException e) {
-            Log.e(TAG, "The given filename is not valid: " + fileName);
-            return 0;
-        }
+        return BuildFileName.parse(fileName).getTimestamp();
     }
 
     public static String getAndroidVersion(String versionName) {
@@ -144,21 +122,11 @@ public class Utils {
     }
 
     public static String getVersionFromFileName(String fileName) {
-        String[] subStrings = fileName.split("-");
-        if (subStrings.length < 2 || subStrings[1].length() < 4) {
-            Log.e(TAG, "The given filename is not valid: " + fileName);
-            return "????";
-        }
-        return subStrings[1];
+        return BuildFileName.parse(fileName).getVersion();
     }
 
     public static String getTypeFromFileName(String fileName) {
-        String[] subStrings = fileName.split("-");
-        if (subStrings.length < 4 || subStrings[3].length() < 7) {
-           Log.e(TAG, "The given filename is not valid: " + fileName);
-           return "???????";
-        }
-        return subStrings[3];
+        return BuildFileName.parse(fileName).getType();
     }
 
     public static String getUserAgentString(Context context) {
@@ -180,6 +148,20 @@ public class Utils {
         return false;
     }
 
+    /**
+     * Whether a download can go on over the active network
+     *
+     * @param meteredAllowed whether the user agreed to use mobile data
+     */
+    public static boolean isDownloadAllowed(Context context, boolean meteredAllowed) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo netInfo = cm.getActiveNetworkInfo();
+        if (netInfo == null || !netInfo.isConnected() || netInfo.isRoaming()) {
+            return false;
+        }
+        return meteredAllowed || !cm.isActiveNetworkMetered();
+    }
+
     public static void scheduleUpdateService(Context context, int updateFrequency) {
         // Load the required settings from preferences
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
@@ -205,6 +187,21 @@ public class Utils {
         context.startService(otaIntent);
     }
 
+    /**
+     * Whether updates are installed straight from the update server
+     */
+    public static boolean isStreamingUpdateAB(Context context) {
+        return context.getResources().getBoolean(R.bool.conf_streaming_ab_install)
+                && SystemProperties.getBoolean("ro.build.ab_update", false);
+    }
+
+    public static void triggerStreamingUpdateAB(Context context, UpdateInfo updateInfo) {
+        Intent otaIntent = new Intent(context, ABOTAService.class);
+        otaIntent.putExtra(ABOTAService.EXTRA_ZIP_NAME, updateInfo.getFileName());
+        otaIntent.putExtra(ABOTAService.EXTRA_URL, updateInfo.getDownloadUrl());
+        context.startService(otaIntent);
+    }
+
     public static void triggerUpdate(Context context, String updateFileName) throws IOException {
         // Create the path for the update package
         String updatePackagePath = makeUpdateFolder(context).getPath() + "/" + updateFileName;
@@ -246,58 +243,40 @@ public class Utils {
     }
 
     public static boolean isABUpdate(Context context, String filename) {
-        String zipPath = Utils.makeUpdateFolder(context).getPath() + "/" + filename;
-        List nonABFiles = Arrays.asList("file_contexts.bin",
-                                        "install/bin/backuptool.functions",
-                                        "install/bin/backuptool.sh",
-                                        "install/bin/otasigcheck.sh",
-                                        "system.patch.dat",
-                                        "system/build.prop",
-                                        "META-INF/org/lineageos/releasekey",
-                                        "META-INF/com/google/android/updater-script",
-                                        "META-INF/com/google/android/update-binary",
-                                        "system.new.dat",
-                                        "boot.img",
-                                        "system.transfer.list");
-
-        List ABOTAFiles = Arrays.asList("payload_properties.txt",
-                                        "care_map.txt",
-                                        "payload.bin");
-        boolean ret = false;
-
         try {
-            ZipInputStream zin = new ZipInputStream(new FileInputStream(zipPath));
-            ZipEntry entry;
-
-            while ((entry = zin.getNextEntry()) != null) {
-                String file = entry.getName();
-                if (nonABFiles.contains(file)) {
-                    break;
-                } else if (ABOTAFiles.contains(file)) {
-                    ret = true;
-                    break;
-                }
-            }
-            zin.close();
-
+            return PackageMetadata.get(new File(makeUpdateFolder(context), filename))
+                    .isABUpdate();
         } catch (IOException e) {
             Log.e(TAG, "Failed to examine zip", e);
+            return false;
         }
-
-        return ret;
     }
 
     public static void copy(String src, String dst) throws IOException {
-        InputStream in = new FileInputStream(new File(src));
-        OutputStream out = new FileOutputStream(new File(dst));
-
-        // Transfer bytes from in to out
-        byte[] buf = new byte[1024];
-        int len;
-        while ((len = in.read(buf)) > 0) {
-            out.write(buf, 0, len);
+        copyRange(src, dst, 0, new File(src).length());
+    }
+
+    /**
+     * Copy length bytes of src, from offset, to dst, in the kernel when possible
+     */
+    public static void copyRange(String src, String dst, long offset, long length)
+            throws IOException {
+        try (
+            FileInputStream in = new FileInputStream(src);
+            FileOutputStream out = new FileOutputStream(dst);
+
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+        ) {
+            long position = 0;
+            while (position < length) {
+                long count = inChannel.transferTo(offset + position, length - position,
+                        outChannel);
+                if (count <= 0) {
+                    throw new IOException(src + " truncated at " + (offset + position));
+                }
+                position += count;
+            }
         }
-        in.close();
-        out.close();
     }
 }
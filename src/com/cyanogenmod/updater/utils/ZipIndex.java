@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Index of a zip, read from its central directory.
+ *
+ * Only the end of the archive, the central directory and the local headers of
+ * the entries asked for are read, so the cost doesn't depend on the size of
+ * the package. Offsets come from the local headers, whose extra fields may
+ * differ from the central ones, and sizes from the central directory, which
+ * has them even when the entry is followed by a data descriptor.
+ */
+public class ZipIndex implements Closeable {
+
+    /**
+     * Random access to the bytes of an archive
+     */
+    public interface Source extends Closeable {
+        long size() throws IOException;
+
+        /**
+         * Get length bytes starting at offset
+         */
+        ByteBuffer read(long offset, int length) throws IOException;
+    }
+
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_EOCD_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int CENTRAL_SIG = 0x02014b50;
+    private static final int CENTRAL_SIZE = 46;
+    private static final int LOCAL_SIG = 0x04034b50;
+    private static final int LOCAL_SIZE = 30;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int MAX_COMMENT = 0xffff;
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    public static final int METHOD_STORED = 0;
+    public static final int METHOD_DEFLATED = 8;
+
+    private final Source mSource;
+    private final List<Entry> mEntries;
+    private final Map<String, Entry> mEntriesByName;
+
+    public static final class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final long mCrc;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+        private long mDataOffset = -1;
+
+        private Entry(String name, int method, long crc, long compressedSize, long size,
+                long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mCrc = crc;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Get the compression method, METHOD_STORED or METHOD_DEFLATED
+         */
+        public int getMethod() {
+            return mMethod;
+        }
+
+        /**
+         * Get the size of the data in the archive
+         */
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        /**
+         * Get the uncompressed size
+         */
+        public long getSize() {
+            return mSize;
+        }
+
+        public boolean isDirectory() {
+            return mName.endsWith("/");
+        }
+    }
+
+    private ZipIndex(Source source, List<Entry> entries) {
+        mSource = source;
+        mEntries = Collections.unmodifiableList(entries);
+        mEntriesByName = new HashMap<String, Entry>();
+        for (Entry entry : entries) {
+            mEntriesByName.put(entry.getName(), entry);
+        }
+    }
+
+    /**
+     * Index a zip file, memory mapping the parts that are read
+     */
+    public static ZipIndex open(File file) throws IOException {
+        return open(new FileSource(file));
+    }
+
+    /**
+     * Index the zip in source, which is closed along with the index
+     */
+    public static ZipIndex open(Source source) throws IOException {
+        try {
+            return new ZipIndex(source, readCentralDirectory(source));
+        } catch (IOException | RuntimeException e) {
+            source.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the entries, in the order of the central directory
+     */
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Get an entry, null if there is none with that name
+     */
+    public Entry getEntry(String name) {
+        return mEntriesByName.get(name);
+    }
+
+    /**
+     * Get the offset of the data of an entry in the archive
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        if (entry.mDataOffset < 0) {
+            ByteBuffer header = read(entry.mLocalHeaderOffset, LOCAL_SIZE);
+            if (header.getInt(0) != LOCAL_SIG) {
+                throw new ZipException("Bad local header for " + entry.getName());
+            }
+            int nameLength = header.getShort(26) & 0xffff;
+            int extraLength = header.getShort(28) & 0xffff;
+            entry.mDataOffset = entry.mLocalHeaderOffset + LOCAL_SIZE + nameLength + extraLength;
+        }
+        return entry.mDataOffset;
+    }
+
+    /**
+     * Get the uncompressed content of a small entry
+     *
+     * @param maxSize the largest size accepted
+     */
+    public byte[] readEntry(Entry entry, int maxSize) throws IOException {
+        if (entry.getSize() > maxSize || entry.getCompressedSize() > maxSize) {
+            throw new ZipException(entry.getName() + " is too large");
+        }
+        ByteBuffer data = read(getDataOffset(entry), (int) entry.getCompressedSize());
+        byte[] content;
+        if (entry.getMethod() == METHOD_STORED) {
+            content = new byte[data.remaining()];
+            data.get(content);
+        } else if (entry.getMethod() == METHOD_DEFLATED) {
+            content = inflate(data, (int) entry.getSize());
+        } else {
+            throw new ZipException("Unsupported compression method " + entry.getMethod()
+                    + " for " + entry.getName());
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        if (content.length != entry.getSize() || crc.getValue() != entry.mCrc) {
+            throw new ZipException("Corrupted entry " + entry.getName());
+        }
+        return content;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSource.close();
+    }
+
+    private ByteBuffer read(long offset, int length) throws IOException {
+        return read(mSource, offset, length);
+    }
+
+    private static ByteBuffer read(Source source, long offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > source.size()) {
+            throw new ZipException("Truncated archive");
+        }
+        ByteBuffer buffer = source.read(offset, length).slice();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private static byte[] inflate(ByteBuffer data, int size) throws IOException {
+        byte[] input = new byte[data.remaining()];
+        data.get(input);
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+            byte[] buffer = new byte[Math.max(1, Math.min(size, 8192))];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // Truncated streams are caught by the size check
+                    break;
+                }
+                out.write(buffer, 0, count);
+                if (out.size() > size) {
+                    throw new ZipException("Entry larger than declared");
+                }
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new ZipException("Bad deflate stream: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static List<Entry> readCentralDirectory(Source source) throws IOException {
+        long size = source.size();
+        if (size < EOCD_SIZE) {
+            throw new ZipException("Not a zip archive");
+        }
+
+        // The end of central directory record is followed by a comment of up to 64K
+        int tailLength = (int) Math.min(size, EOCD_SIZE + MAX_COMMENT);
+        long tailOffset = size - tailLength;
+        ByteBuffer tail = read(source, tailOffset, tailLength);
+        int eocd = -1;
+        for (int i = tailLength - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIG
+                    && i + EOCD_SIZE + (tail.getShort(i + 20) & 0xffff) == tailLength) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new ZipException("End of central directory not found");
+        }
+
+        long count = tail.getShort(eocd + 10) & 0xffff;
+        long cdSize = tail.getInt(eocd + 12) & 0xffffffffL;
+        long cdOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+
+        long locatorOffset = tailOffset + eocd - ZIP64_LOCATOR_SIZE;
+        if ((count == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL)
+                && locatorOffset >= 0) {
+            ByteBuffer locator = read(source, locatorOffset, ZIP64_LOCATOR_SIZE);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIG) {
+                ByteBuffer eocd64 = read(source, locator.getLong(8), 56);
+                if (eocd64.getInt(0) != ZIP64_EOCD_SIG) {
+                    throw new ZipException("Bad zip64 end of central directory");
+                }
+                count = eocd64.getLong(32);
+                cdSize = eocd64.getLong(40);
+                cdOffset = eocd64.getLong(48);
+            }
+        }
+        if (cdSize > Integer.MAX_VALUE || count > cdSize / CENTRAL_SIZE) {
+            throw new ZipException("Bad central directory");
+        }
+
+        ByteBuffer cd = read(source, cdOffset, (int) cdSize);
+        List<Entry> entries = new ArrayList<Entry>((int) count);
+        int position = 0;
+        for (long i = 0; i < count; i++) {
+            if (position + CENTRAL_SIZE > cdSize || cd.getInt(position) != CENTRAL_SIG) {
+                throw new ZipException("Bad central directory entry " + i);
+            }
+            int flags = cd.getShort(position + 8) & 0xffff;
+            int method = cd.getShort(position + 10) & 0xffff;
+            long crc = cd.getInt(position + 16) & 0xffffffffL;
+            long compressedSize = cd.getInt(position + 20) & 0xffffffffL;
+            long uncompressedSize = cd.getInt(position + 24) & 0xffffffffL;
+            int nameLength = cd.getShort(position + 28) & 0xffff;
+            int extraLength = cd.getShort(position + 30) & 0xffff;
+            int commentLength = cd.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = cd.getInt(position + 42) & 0xffffffffL;
+            int next = position + CENTRAL_SIZE + nameLength + extraLength + commentLength;
+            if (next > cdSize) {
+                throw new ZipException("Bad central directory entry " + i);
+            }
+
+            byte[] name = new byte[nameLength];
+            cd.position(position + CENTRAL_SIZE);
+            cd.get(name);
+            Charset charset = (flags & FLAG_UTF8) != 0
+                    ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1;
+
+            // Values that don't fit in 32 bits are in the zip64 extra field, in this order
+            int extra = position + CENTRAL_SIZE + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = cd.getShort(extra) & 0xffff;
+                int length = cd.getShort(extra + 2) & 0xffff;
+                int field = extra + 4;
+                if (id == ZIP64_EXTRA_ID) {
+                    int fieldEnd = Math.min(field + length, extraEnd);
+                    if (uncompressedSize == 0xffffffffL && field + 8 <= fieldEnd) {
+                        uncompressedSize = cd.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xffffffffL && field + 8 <= fieldEnd) {
+                        compressedSize = cd.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == 0xffffffffL && field + 8 <= fieldEnd) {
+                        localHeaderOffset = cd.getLong(field);
+                    }
+                    break;
+                }
+                extra = field + length;
+            }
+
+            entries.add(new Entry(new String(name, charset), method, crc, compressedSize,
+                    uncompressedSize, localHeaderOffset));
+            position = next;
+        }
+        return entries;
+    }
+
+    /**
+     * Maps the requested parts of a file
+     */
+    public static class FileSource implements Source {
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+
+        public FileSource(File file) throws IOException {
+            mFile = new RandomAccessFile(file, "r");
+            mChannel = mFile.getChannel();
+        }
+
+        @Override
+        public long size() throws IOException {
+            return mChannel.size();
+        }
+
+        @Override
+        public ByteBuffer read(long offset, int length) throws IOException {
+            return mChannel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+    }
+}
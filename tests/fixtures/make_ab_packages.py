@@ -0,0 +1,156 @@
+#!/usr/bin/env python3
+#
+# Copyright (C) 2017 The LineageOS Project
+#
+# * Licensed under the GNU GPLv2 license
+#
+# The text of the license can be found in the LICENSE file
+# or at https://www.gnu.org/licenses/gpl-2.0.txt
+#
+# Writes small A/B packages covering the zip layouts the streaming install
+# has to find payload.bin in, and expected.txt with, for each of them, the
+# offset and size of the payload and its properties as read straight from
+# the local headers. An offset of -1 means the package must be refused.
+#
+# usage: make_ab_packages.py OUT_DIR
+
+import io
+import os
+import random
+import struct
+import sys
+import zipfile
+import zlib
+
+PAYLOAD = 'payload.bin'
+PROPERTIES = 'payload_properties.txt'
+
+
+def properties(payload):
+    return ('FILE_HASH=%s\nFILE_SIZE=%d\nMETADATA_HASH=%s\nMETADATA_SIZE=%d\n' % (
+        'A' * 43 + '=', len(payload), 'B' * 43 + '=', 1234)).encode()
+
+
+def write_zip(path, entries, force_zip64=False, streamed=False):
+    """entries: (name, data, compress_type) in order"""
+    buf = io.BytesIO()
+    # A pipe, zipfile then writes sizes in data descriptors after the data
+    out = type('Pipe', (), {'write': buf.write, 'flush': lambda self: None})() \
+        if streamed else buf
+    with zipfile.ZipFile(out, 'w') as z:
+        for name, data, method in entries:
+            info = zipfile.ZipInfo(name, (2017, 6, 1, 0, 0, 0))
+            info.compress_type = method
+            with z.open(info, 'w', force_zip64=force_zip64 and name == PAYLOAD) as f:
+                f.write(data)
+    with open(path, 'wb') as f:
+        f.write(buf.getvalue())
+
+
+def write_raw_zip(path, entries):
+    """entries: (name, data, compress_type, local_extra) in order. Unlike
+    zipfile, writes the extra field only in the local header."""
+    out = bytearray()
+    central = bytearray()
+    for name, data, method, extra in entries:
+        raw_name = name.encode('utf-8')
+        flags = 0x800 if raw_name != name.encode('ascii', 'replace') else 0
+        packed = data if method == zipfile.ZIP_STORED else \
+            zlib.compress(data)[2:-4]
+        crc = zlib.crc32(data)
+        offset = len(out)
+        out += struct.pack('<IHHHHHIIIHH', 0x04034b50, 20, flags, method, 0, 0x4ac1,
+                           crc, len(packed), len(data), len(raw_name), len(extra))
+        out += raw_name + extra + packed
+        central += struct.pack('<IHHHHHHIIIHHHHHII', 0x02014b50, 20, 20, flags, method,
+                               0, 0x4ac1, crc, len(packed), len(data), len(raw_name),
+                               0, 0, 0, 0, 0, offset)
+        central += raw_name
+    start = len(out)
+    out += central
+    out += struct.pack('<IHHHHIIH', 0x06054b50, 0, 0, len(entries), len(entries),
+                       len(central), start, 0)
+    with open(path, 'wb') as f:
+        f.write(out)
+
+
+def expected(path):
+    """Offset, size and properties of the payload, from the local headers"""
+    with open(path, 'rb') as f:
+        raw = f.read()
+    with zipfile.ZipFile(path) as z:
+        infos = {i.filename: i for i in z.infolist()}
+        payload = infos.get(PAYLOAD)
+        props = infos.get(PROPERTIES)
+        if payload is None or props is None or payload.compress_type != zipfile.ZIP_STORED:
+            return -1, -1, '-'
+        name_len, extra_len = struct.unpack(
+            '<HH', raw[payload.header_offset + 26:payload.header_offset + 30])
+        offset = payload.header_offset + 30 + name_len + extra_len
+        if raw[offset:offset + payload.file_size] != z.read(payload):
+            raise AssertionError('Payload of %s not at %d' % (path, offset))
+        lines = z.read(props).decode().splitlines()
+        return offset, payload.file_size, '|'.join(lines)
+
+
+def main():
+    out_dir = sys.argv[1]
+    os.makedirs(out_dir, exist_ok=True)
+    rng = random.Random(1)
+
+    def payload(size):
+        return rng.getrandbits(size * 8).to_bytes(size, 'little')
+
+    stored, small, big = payload(3000000), payload(7000), payload(2000001)
+    metadata = ('ota-type=AB\npre-device=bacon\n' * 40).encode()
+    care_map = b'/dev/block/bootdevice/by-name/system\n0,1024\n'
+    D, S = zipfile.ZIP_DEFLATED, zipfile.ZIP_STORED
+
+    packages = {
+        # As built by ota_from_target_files
+        'stored.zip': lambda p: write_zip(p, [
+            ('META-INF/com/android/metadata', metadata, D),
+            (PAYLOAD, stored, S),
+            (PROPERTIES, properties(stored), S),
+            ('care_map.txt', care_map, D)]),
+        # A UTF-8 name before the payload, whose local extra field isn't in
+        # the central directory
+        'tricky.zip': lambda p: write_raw_zip(p, [
+            ('META-INF/über.txt', metadata, D, b''),
+            (PAYLOAD, small, S, struct.pack('<HH', 0xcafe, 24) + b'\0' * 24),
+            (PROPERTIES, properties(small), D, b'')]),
+        # Zip64 extra field in the local header of the payload
+        'zip64.zip': lambda p: write_zip(p, [
+            ('care_map.txt', care_map, D),
+            (PAYLOAD, big, S),
+            (PROPERTIES, properties(big), D)], force_zip64=True),
+        # Sizes only in data descriptors and the central directory
+        'streamed.zip': lambda p: write_zip(p, [
+            (PROPERTIES, properties(small), D),
+            (PAYLOAD, small, S)], streamed=True),
+        # update_engine can't read a compressed payload in place
+        'deflated.zip': lambda p: write_zip(p, [
+            (PAYLOAD, bytes(100000), D),
+            (PROPERTIES, properties(bytes(100000)), D)]),
+        'noprops.zip': lambda p: write_zip(p, [
+            ('care_map.txt', care_map, D),
+            (PAYLOAD, small, S)]),
+        # Not an A/B package at all
+        'legacy.zip': lambda p: write_zip(p, [
+            ('META-INF/com/google/android/updater-script', b'ui_print("hi");\n', D),
+            (PAYLOAD, small, S),
+            (PROPERTIES, properties(small), D)]),
+    }
+
+    with open(os.path.join(out_dir, 'expected.txt'), 'w') as f:
+        for name, make in packages.items():
+            path = os.path.join(out_dir, name)
+            make(path)
+            # The updater refuses the payloads of non A/B packages as well
+            offset, size, props = expected(path) if name != 'legacy.zip' else (-1, -1, '-')
+            f.write('%s %d %d %s\n' % (name, offset, size, props))
+            print(name, offset, size)
+
+
+if __name__ == '__main__':
+    sys.exit(main())
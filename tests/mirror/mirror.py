@@ -0,0 +1,143 @@
+#!/usr/bin/env python3
+#
+# Copyright (C) 2017 The LineageOS Project
+#
+# * Licensed under the GNU GPLv2 license
+#
+# The text of the license can be found in the LICENSE file
+# or at https://www.gnu.org/licenses/gpl-2.0.txt
+#
+# Local stand-in for the download mirror. Serves a random build under any
+# path, or the files of --dir by name, with range requests, an ETag and an
+# optional cap on the rate of every connection. Also answers:
+#   /stats   bytes and requests served since the start or the last /reset,
+#            then the SHA-256 of the build, - with --dir
+#   /reset   zeroes the counters
+#   /redir/PATH
+#            redirects to /PATH, as the mirror network does
+
+import argparse
+import hashlib
+import http.server
+import os
+import random
+import re
+import sys
+import threading
+import time
+
+CHUNK = 16 * 1024
+
+
+def make_build(size, seed):
+    rng = random.Random(seed)
+    return rng.getrandbits(size * 8).to_bytes(size, 'little') if size else b''
+
+
+class Mirror(http.server.BaseHTTPRequestHandler):
+    protocol_version = 'HTTP/1.1'
+
+    def log_message(self, *args):
+        pass
+
+    def send_body(self, code, body, headers=()):
+        self.send_response(code)
+        for name, value in headers:
+            self.send_header(name, value)
+        self.send_header('Content-Length', str(len(body)))
+        self.end_headers()
+        self.wfile.write(body)
+
+    def do_GET(self):
+        server = self.server
+        if self.path == '/stats':
+            with server.lock:
+                stats = '%d %d %s\n' % (server.served, server.requests, server.sha256)
+            self.send_body(200, stats.encode())
+            return
+        if self.path == '/reset':
+            with server.lock:
+                server.served = server.requests = 0
+            self.send_body(200, b'')
+            return
+        if self.path.startswith('/redir/'):
+            self.send_body(302, b'', [('Location', self.path[len('/redir'):])])
+            return
+        if self.path.endswith('.blocks'):
+            self.send_body(404, b'')
+            return
+
+        data, etag = server.build, server.sha256[:16]
+        if server.dir:
+            path = os.path.join(server.dir, os.path.basename(self.path))
+            if not os.path.isfile(path):
+                self.send_body(404, b'')
+                return
+            with open(path, 'rb') as f:
+                data = f.read()
+            etag = hashlib.sha256(data).hexdigest()[:16]
+        with server.lock:
+            server.requests += 1
+        match = re.match(r'bytes=(\d+)-(\d*)$', self.headers.get('Range', ''))
+        if match:
+            start = int(match.group(1))
+            end = int(match.group(2)) if match.group(2) else len(data) - 1
+            end = min(end, len(data) - 1)
+            if start > end:
+                self.send_body(416, b'', [('Content-Range', 'bytes */%d' % len(data))])
+                return
+            self.send_response(206)
+            self.send_header('Content-Range', 'bytes %d-%d/%d' % (start, end, len(data)))
+            body = memoryview(data)[start:end + 1]
+        else:
+            self.send_response(200)
+            body = memoryview(data)
+        self.send_header('ETag', '"%s"' % etag)
+        self.send_header('Accept-Ranges', 'bytes')
+        self.send_header('Content-Length', str(len(body)))
+        self.end_headers()
+
+        began = time.monotonic()
+        sent = 0
+        try:
+            while sent < len(body):
+                chunk = body[sent:sent + CHUNK]
+                self.wfile.write(chunk)
+                sent += len(chunk)
+                with server.lock:
+                    server.served += len(chunk)
+                if server.rate:
+                    # Hold this connection to the rate, whatever the others do
+                    ahead = sent / server.rate - (time.monotonic() - began)
+                    if ahead > 0:
+                        time.sleep(ahead)
+        except (BrokenPipeError, ConnectionResetError):
+            pass
+
+
+def main():
+    parser = argparse.ArgumentParser(description='Download mirror stand-in')
+    parser.add_argument('--port', type=int, default=8800)
+    parser.add_argument('--size', type=int, default=32 * 1024 * 1024,
+                        help='size of the build in bytes')
+    parser.add_argument('--seed', type=int, default=1)
+    parser.add_argument('--rate', type=int, default=0,
+                        help='cap of every connection in KiB/s, 0 for none')
+    parser.add_argument('--dir',
+                        help='serve the files of this directory instead of a build')
+    args = parser.parse_args()
+
+    server = http.server.ThreadingHTTPServer(('127.0.0.1', args.port), Mirror)
+    server.daemon_threads = True
+    server.lock = threading.Lock()
+    server.served = server.requests = 0
+    server.rate = args.rate * 1024
+    server.dir = args.dir
+    server.build = make_build(0 if args.dir else args.size, args.seed)
+    server.sha256 = '-' if args.dir else hashlib.sha256(server.build).hexdigest()
+    print('ready %s %d' % (server.sha256, len(server.build)), flush=True)
+    server.serve_forever()
+
+
+if __name__ == '__main__':
+    sys.exit(main())
@@ -0,0 +1,70 @@
+#!/bin/bash
+#
+# Copyright (C) 2017 The LineageOS Project
+#
+# * Licensed under the GNU GPLv2 license
+#
+# The text of the license can be found in the LICENSE file
+# or at https://www.gnu.org/licenses/gpl-2.0.txt
+#
+# Builds the host-side harnesses against the app sources they exercise and
+# runs one of them. See README.md.
+#
+# usage: tests/run.sh <harness> [args...]
+
+set -e
+
+TESTS=$(cd "$(dirname "$0")" && pwd)
+SRC=$TESTS/../src/com/cyanogenmod/updater
+OUT=$TESTS/out
+
+# App sources with no dependencies beyond the stubs
+SOURCES=(
+    $SRC/download/BlockManifest.java
+    $SRC/download/BlockMatcher.java
+    $SRC/download/DownloadJournal.java
+    $SRC/download/HttpRangeSource.java
+    $SRC/download/InOrderDigest.java
+    $SRC/download/RateLimiter.java
+    $SRC/download/RollingChecksum.java
+    $SRC/download/SegmentedDownloader.java
+    $SRC/misc/BuildFileName.java
+    $SRC/misc/BuildOrder.java
+    $SRC/misc/Constants.java
+    $SRC/misc/InstalledBuild.java
+    $SRC/misc/PackageMetadata.java
+    $SRC/misc/State.java
+    $SRC/misc/UpdateInfo.java
+    $SRC/utils/ZipIndex.java
+)
+
+case "$1" in
+    abpackages)
+        MAIN=com.cyanogenmod.updater.download.StreamingOffsetCheck
+        ;;
+    catalog)
+        MAIN=com.cyanogenmod.updater.misc.CatalogBenchmark
+        ;;
+    download)
+        MAIN=com.cyanogenmod.updater.download.DownloadBenchmark
+        ;;
+    filename)
+        MAIN=com.cyanogenmod.updater.misc.FileNameBenchmark
+        ;;
+    ratelimit)
+        MAIN=com.cyanogenmod.updater.download.RateLimitCheck
+        ;;
+    *)
+        echo "usage: $0 <harness> [args...]" >&2
+        echo "harnesses: abpackages catalog download filename ratelimit" >&2
+        exit 1
+        ;;
+esac
+shift
+
+# The cache is kept, some harnesses read what an earlier run left there
+rm -rf "$OUT/classes"
+mkdir -p "$OUT/classes" "$OUT/cache"
+javac -nowarn -encoding UTF-8 -d "$OUT/classes" \
+        $(find "$TESTS/stubs" "$TESTS/src" -name '*.java') "${SOURCES[@]}"
+exec java -Dtest.cache.dir="$OUT/cache" $JAVA_OPTS -cp "$OUT/classes" $MAIN "$@"
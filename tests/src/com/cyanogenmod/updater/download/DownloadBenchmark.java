@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import java.io.File;
+
+/**
+ * Downloads the build of the mirror stand-in with {@link SegmentedDownloader},
+ * once per connection count, and checks every copy against its SHA-256.
+ *
+ *   download URL [connections...]
+ */
+public class DownloadBenchmark {
+    public static void main(String[] args) throws Exception {
+        String url = args[0];
+        int[] connections = { 1, 2, 4, 8 };
+        if (args.length > 1) {
+            connections = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                connections[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        String sha256 = MirrorStats.get(url).sha256;
+        File file = new File(System.getProperty("test.cache.dir"), "download.zip");
+
+        for (int count : connections) {
+            file.delete();
+            MirrorStats.reset(url);
+            SegmentedDownloader downloader = new SegmentedDownloader(url, file, null,
+                    "DownloadBenchmark", count);
+            downloader.setExpectedSha256(sha256);
+            long start = System.nanoTime();
+            int state = downloader.download();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (state != SegmentedDownloader.STATE_SUCCESSFUL) {
+                throw new AssertionError(count + " connections: download ended in state "
+                        + state + (downloader.isCorrupted() ? ", corrupted" : ""));
+            }
+            MirrorStats stats = MirrorStats.get(url);
+            System.out.printf("%d connections: %.2f s, %.2f MiB/s, %d bytes served "
+                    + "in %d requests%n", count, seconds, file.length() / seconds / 1048576,
+                    stats.served, stats.requests);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Counters of the mirror stand-in, tests/mirror/mirror.py
+ */
+class MirrorStats {
+    final long served;
+    final int requests;
+    final String sha256;
+
+    private MirrorStats(long served, int requests, String sha256) {
+        this.served = served;
+        this.requests = requests;
+        this.sha256 = sha256;
+    }
+
+    static MirrorStats get(String buildUrl) throws IOException {
+        String[] fields = fetch(buildUrl, "/stats").trim().split(" ");
+        return new MirrorStats(Long.parseLong(fields[0]), Integer.parseInt(fields[1]),
+                fields[2]);
+    }
+
+    static void reset(String buildUrl) throws IOException {
+        fetch(buildUrl, "/reset");
+    }
+
+    private static String fetch(String buildUrl, String path) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(new URL(buildUrl), path)
+                .openConnection();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                conn.getInputStream(), StandardCharsets.US_ASCII))) {
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sb.append(line).append('\n');
+            }
+            return sb.toString();
+        } finally {
+            conn.disconnect();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Downloads the build of an uncapped mirror stand-in through a
+ * {@link RateLimiter} and checks how closely every second keeps to the limit.
+ * The limit can be changed during the download, as DownloadService does when
+ * the updates stop being shown.
+ *
+ *   ratelimit URL KIB_PER_S [CONNECTIONS] [SECONDS KIB_PER_S]
+ */
+public class RateLimitCheck {
+    // Allowed deviation of a full second from the limit
+    private static final double TOLERANCE = 0.05;
+
+    public static void main(String[] args) throws Exception {
+        String url = args[0];
+        final long rate = Long.parseLong(args[1]) * 1024;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        final int changeAfter = args.length > 4 ? Integer.parseInt(args[3]) : -1;
+        final long newRate = args.length > 4 ? Long.parseLong(args[4]) * 1024 : rate;
+
+        File file = new File(System.getProperty("test.cache.dir"), "ratelimit.zip");
+        file.delete();
+        final SegmentedDownloader downloader = new SegmentedDownloader(url, file, null,
+                "RateLimitCheck", connections);
+        downloader.setExpectedSha256(MirrorStats.get(url).sha256);
+        final RateLimiter limiter = new RateLimiter(rate);
+        downloader.setRateLimiter(limiter);
+
+        // Bytes downloaded at the end of every second, and the limit during it
+        final List<Long> downloaded = new ArrayList<Long>();
+        final List<Long> limits = new ArrayList<Long>();
+        Thread sampler = new Thread("sampler") {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                for (int second = 1; ; second++) {
+                    long wait = start + second * 1000000000L - System.nanoTime();
+                    try {
+                        Thread.sleep(Math.max(0, wait / 1000000));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    limits.add(limiter.getRate());
+                    downloaded.add(downloader.getDownloadedBytes());
+                    if (second == changeAfter) {
+                        limiter.setRate(newRate);
+                    }
+                }
+            }
+        };
+
+        long start = System.nanoTime();
+        sampler.start();
+        int state = downloader.download();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        sampler.interrupt();
+        sampler.join();
+        file.delete();
+        if (state != SegmentedDownloader.STATE_SUCCESSFUL) {
+            throw new AssertionError("Download ended in state " + state);
+        }
+
+        double worst = 0;
+        long last = 0;
+        StringBuilder perSecond = new StringBuilder();
+        for (int i = 0; i < downloaded.size(); i++) {
+            long bytes = downloaded.get(i) - last;
+            last = downloaded.get(i);
+            perSecond.append(' ').append(bytes / 1024);
+            worst = Math.max(worst, Math.abs(bytes - limits.get(i)) / (double) limits.get(i));
+        }
+        System.out.printf("%d connections, %d KiB/s%s: %.2f s%n", connections, rate / 1024,
+                changeAfter > 0 ? " then " + newRate / 1024 + " KiB/s after " + changeAfter
+                + " s" : "", seconds);
+        System.out.println("KiB per second:" + perSecond);
+        System.out.printf("worst second %.1f%% off the limit%n", worst * 100);
+        if (worst > TOLERANCE) {
+            throw new AssertionError("A second was more than " + (int) (TOLERANCE * 100)
+                    + "% off the limit");
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.download;
+
+import com.cyanogenmod.updater.misc.PackageMetadata;
+import com.cyanogenmod.updater.utils.ZipIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds payload.bin in the packages of tests/fixtures/make_ab_packages.py
+ * over HTTP, as ABOTAService.stageFromUrl() does before handing the payload
+ * to update_engine, and checks the offset, size and properties against the
+ * ones read from the local headers and against a scan of the local file.
+ * The packages are served by the mirror stand-in, through a redirect.
+ *
+ *   abpackages BASE_URL FIXTURE_DIR
+ */
+public class StreamingOffsetCheck {
+    public static void main(String[] args) throws Exception {
+        String base = args[0];
+        File dir = new File(args[1]);
+        List<String> lines = Files.readAllLines(new File(dir, "expected.txt").toPath(),
+                StandardCharsets.UTF_8);
+
+        for (String line : lines) {
+            String[] fields = line.split(" ", 4);
+            String name = fields[0];
+            long expectedOffset = Long.parseLong(fields[1]);
+            long expectedSize = Long.parseLong(fields[2]);
+            String[] expectedProperties = fields[3].split("\\|");
+
+            MirrorStats.reset(base);
+            String url = base + "/redir/" + name;
+            HttpRangeSource source = new HttpRangeSource(url, "StreamingOffsetCheck");
+            PackageMetadata remote;
+            String resolvedUrl;
+            long size;
+            try (ZipIndex zip = ZipIndex.open(source)) {
+                size = source.size();
+                remote = PackageMetadata.get(zip, url, size);
+                resolvedUrl = source.getResolvedUrl();
+            }
+            MirrorStats stats = MirrorStats.get(base);
+            PackageMetadata local = getLocal(new File(dir, name));
+
+            boolean refused = !remote.isABUpdate() || remote.getPayloadOffset() < 0;
+            if (refused != (expectedOffset < 0)) {
+                throw new AssertionError(name + (refused ? " refused" : " accepted"));
+            }
+            if (remote.isABUpdate() != local.isABUpdate()
+                    || remote.getPayloadOffset() != local.getPayloadOffset()) {
+                throw new AssertionError(name + ": different metadata over HTTP and locally");
+            }
+            if (refused) {
+                System.out.printf("%-13s refused, %d requests, %d of %d bytes%n", name,
+                        stats.requests, stats.served, size);
+                continue;
+            }
+
+            check(name, "offset", expectedOffset, remote.getPayloadOffset());
+            check(name, "size", expectedSize, remote.getPayloadSize());
+            check(name, "local size", expectedSize, local.getPayloadSize());
+            if (!Arrays.equals(expectedProperties, remote.getPayloadProperties())
+                    || !Arrays.equals(expectedProperties, local.getPayloadProperties())) {
+                throw new AssertionError(name + ": properties "
+                        + Arrays.toString(remote.getPayloadProperties()));
+            }
+            // The offset is only valid for the copy it was read from
+            if (!resolvedUrl.equals(base + "/" + name)) {
+                throw new AssertionError(name + ": resolved to " + resolvedUrl);
+            }
+            System.out.printf("%-13s payload at %d, %d bytes, %d properties, "
+                    + "%d requests, %d of %d bytes%n", name, remote.getPayloadOffset(),
+                    remote.getPayloadSize(), remote.getPayloadProperties().length,
+                    stats.requests, stats.served, size);
+        }
+    }
+
+    /**
+     * Scan a copy, the fixtures are left without metadata files
+     */
+    private static PackageMetadata getLocal(File file) throws IOException {
+        File copy = new File(System.getProperty("test.cache.dir"), file.getName());
+        Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        new File(copy.getPath() + PackageMetadata.EXTENSION).delete();
+        try {
+            return PackageMetadata.get(copy);
+        } finally {
+            copy.delete();
+            new File(copy.getPath() + PackageMetadata.EXTENSION).delete();
+        }
+    }
+
+    private static void check(String name, String what, long expected, long actual) {
+        if (expected != actual) {
+            throw new AssertionError(name + ": " + what + " " + actual + ", expected "
+                    + expected);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.misc;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+
+/**
+ * Compares {@link State} with the Java serialization it replaced.
+ *
+ *   catalog [entries] [iterations]    save and load times, file sizes
+ *   catalog --first-load legacy|binary
+ *                                     first load in a fresh JVM, of the files
+ *                                     left by a previous run
+ */
+public class CatalogBenchmark {
+    // Not the old cmupdater.state, State would migrate it
+    private static final String LEGACY_FILENAME = "legacy.state";
+    private static final String FILENAME = "cmupdater.catalog";
+
+    public static void main(String[] args) throws Exception {
+        Context context = new Context();
+        File legacy = new File(context.getCacheDir(), LEGACY_FILENAME);
+
+        if (args.length > 0 && args[0].equals("--first-load")) {
+            boolean binary = args[1].equals("binary");
+            if (!legacy.isFile() || !new File(context.getCacheDir(), FILENAME).isFile()) {
+                throw new IllegalStateException("Run without --first-load first");
+            }
+            long start = System.nanoTime();
+            int size = binary ? State.loadState(context).size() : legacyLoadState(legacy).size();
+            System.out.printf("%s first load of %d entries: %.2f ms%n", args[1], size,
+                    (System.nanoTime() - start) / 1e6);
+            return;
+        }
+
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        LinkedList<UpdateInfo> updates = makeCatalog(entries);
+
+        legacySaveState(legacy, updates);
+        State.saveState(context, updates);
+        System.out.println(entries + " entries: legacy " + legacy.length() + " B, binary "
+                + new File(context.getCacheDir(), FILENAME).length() + " B");
+
+        // The first round only warms up
+        for (int round = 0; round < 2; round++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                legacySaveState(legacy, updates);
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                State.saveState(context, updates);
+            }
+            long t2 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                check(legacyLoadState(legacy), entries);
+            }
+            long t3 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                check(State.loadState(context), entries);
+            }
+            long t4 = System.nanoTime();
+            if (round == 1) {
+                System.out.printf("save: legacy %.1f us, binary %.1f us (synced)%n",
+                        (t1 - t0) / 1e3 / iterations, (t2 - t1) / 1e3 / iterations);
+                System.out.printf("load: legacy %.1f us, binary %.1f us%n",
+                        (t3 - t2) / 1e3 / iterations, (t4 - t3) / 1e3 / iterations);
+            }
+        }
+    }
+
+    /**
+     * Nightlies with distinct URLs and hashes, as the server lists them
+     */
+    private static LinkedList<UpdateInfo> makeCatalog(int entries)
+            throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        LinkedList<UpdateInfo> updates = new LinkedList<UpdateInfo>();
+        for (int i = 0; i < entries; i++) {
+            String date = String.format("2017%02d%02d", 1 + i / 28 % 12, 1 + i % 28);
+            String fileName = "lineage-14.1-" + date + "-NIGHTLY-bacon.zip";
+            byte[] hash = digest.digest(fileName.getBytes(StandardCharsets.UTF_8));
+            updates.add(new UpdateInfo.Builder()
+                    .setFileName(fileName)
+                    .setName("LineageOS 14.1 " + date)
+                    .setType("nightly")
+                    .setApiLevel(25)
+                    .setBuildDate(1483228800L + i * 86400L)
+                    .setDownloadUrl("https://mirrorbits.lineageos.org/full/bacon/" + date
+                            + "/" + fileName)
+                    .setChangelogUrl("https://download.lineageos.org/api/v1/changes/bacon/" + i)
+                    .setVersion("14.1")
+                    .setSha256(String.format("%064x", new BigInteger(1, hash)))
+                    .setSize(400000000L + i)
+                    .build());
+        }
+        return updates;
+    }
+
+    private static void check(LinkedList<UpdateInfo> updates, int entries) {
+        if (updates.size() != entries) {
+            throw new AssertionError("Loaded " + updates.size() + " of " + entries + " entries");
+        }
+    }
+
+    // State.saveState() before the binary format, only the file changed
+    private static void legacySaveState(File f, LinkedList<UpdateInfo> availableUpdates) {
+        ObjectOutputStream oos = null;
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(f);
+            oos = new ObjectOutputStream(fos);
+            oos.writeObject(availableUpdates);
+            oos.flush();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        } finally {
+            try {
+                if (oos != null) {
+                    oos.close();
+                }
+                if (fos != null) {
+                    fos.close();
+                }
+            } catch (IOException e) {
+                // ignored, can't do anything anyway
+            }
+        }
+    }
+
+    // State.loadState() before the binary format, only the file changed
+    @SuppressWarnings("unchecked")
+    private static LinkedList<UpdateInfo> legacyLoadState(File f) {
+        LinkedList<UpdateInfo> availableUpdates = new LinkedList<UpdateInfo>();
+        ObjectInputStream ois = null;
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(f);
+            ois = new ObjectInputStream(fis);
+
+            Object o = ois.readObject();
+            if (o != null && o instanceof LinkedList<?>) {
+                availableUpdates = (LinkedList<UpdateInfo>) o;
+            }
+        } catch (ClassNotFoundException | IOException e) {
+            throw new AssertionError(e);
+        } finally {
+            try {
+                if (ois != null) {
+                    ois.close();
+                }
+                if (fis != null) {
+                    fis.close();
+                }
+            } catch (IOException e) {
+                // ignored, can't do anything anyway
+            }
+        }
+        return availableUpdates;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package com.cyanogenmod.updater.misc;
+
+import android.util.Log;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+/**
+ * Compares {@link BuildFileName} with the helpers it replaced, on the fields
+ * updateLayout() needs for every file: version, date, type and UI name.
+ *
+ *   filename [iterations]
+ */
+public class FileNameBenchmark {
+    private static final String TAG = "Utils";
+    private static final String DEVICE = "bacon";
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        // The old parser used the default time zone, the new one UTC
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        System.setProperty("ro.cm.device", DEVICE);
+
+        String[] names = new String[30];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = String.format("lineage-14.1-2017%02d%02d-NIGHTLY-%s%s.zip",
+                    1 + i / 28, 1 + i % 28, DEVICE, i % 3 == 0 ? "-signed" : "");
+        }
+
+        for (String name : names) {
+            BuildFileName parsed = BuildFileName.parse(name, DEVICE);
+            if (!parsed.getVersion().equals(getVersionFromFileName(name))
+                    || parsed.getTimestamp() != getTimestampFromFileName(name)
+                    || !parsed.getType().equals(getTypeFromFileName(name))
+                    || !parsed.getUiName().equals(extractUiName(name))) {
+                throw new AssertionError("Different fields for " + name);
+            }
+        }
+        System.out.println("Same fields as the old helpers for " + names.length + " names");
+
+        long sink = 0;
+        // The first rounds only warm up
+        for (int round = 0; round < 3; round++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                for (String name : names) {
+                    sink += getVersionFromFileName(name).length()
+                            + getTimestampFromFileName(name)
+                            + getTypeFromFileName(name).length()
+                            + extractUiName(name).length();
+                }
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                for (String name : names) {
+                    BuildFileName parsed = BuildFileName.parse(name, DEVICE);
+                    sink += parsed.getVersion().length() + parsed.getTimestamp()
+                            + parsed.getType().length() + parsed.getUiName().length();
+                }
+            }
+            long t2 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                for (String name : names) {
+                    BuildFileName parsed = BuildFileName.parse(name);
+                    sink += parsed.getVersion().length() + parsed.getTimestamp()
+                            + parsed.getType().length() + parsed.getUiName().length();
+                }
+            }
+            long t3 = System.nanoTime();
+            if (round == 2) {
+                double count = (double) iterations * names.length;
+                System.out.printf("per name: old helpers %.0f ns, single scan %.0f ns, "
+                        + "memoised %.0f ns%n",
+                        (t1 - t0) / count, (t2 - t1) / count, (t3 - t2) / count);
+            }
+        }
+        if (sink == 0) {
+            throw new AssertionError();
+        }
+    }
+
+    // Utils.getTimestampFromFileName() before BuildFileName
+    private static long getTimestampFromFileName(String fileName) {
+        String[] subStrings = fileName.split("-");
+        if (subStrings.length < 3 || subStrings[2].length() < 8) {
+            Log.e(TAG, "The given filename is not valid: " + fileName);
+            return 0;
+        }
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
+        try {
+            return (dateFormat.parse(subStrings[2]).getTime() / 1000);
+        } catch (ParseException e) {
+            Log.e(TAG, "The given filename is not valid: " + fileName);
+            return 0;
+        }
+    }
+
+    // Utils.getVersionFromFileName() before BuildFileName
+    private static String getVersionFromFileName(String fileName) {
+        String[] subStrings = fileName.split("-");
+        if (subStrings.length < 2 || subStrings[1].length() < 4) {
+            Log.e(TAG, "The given filename is not valid: " + fileName);
+            return "????";
+        }
+        return subStrings[1];
+    }
+
+    // Utils.getTypeFromFileName() before BuildFileName
+    private static String getTypeFromFileName(String fileName) {
+        String[] subStrings = fileName.split("-");
+        if (subStrings.length < 4 || subStrings[3].length() < 7) {
+           Log.e(TAG, "The given filename is not valid: " + fileName);
+           return "???????";
+        }
+        return subStrings[3];
+    }
+
+    // UpdateInfo.extractUiName() before BuildFileName, with the device fixed
+    private static String extractUiName(String fileName) {
+        String deviceType = DEVICE;
+        String uiName = fileName.replaceAll("(-signed)?\\.zip$", "");
+        return uiName.replaceAll("-" + deviceType + "-?", "");
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.content;
+
+import java.io.File;
+
+/**
+ * Host stand-in, the cache directory is taken from the test.cache.dir property
+ */
+public class Context {
+    public File getCacheDir() {
+        File dir = new File(System.getProperty("test.cache.dir",
+                System.getProperty("java.io.tmpdir") + "/cmupdater-tests"));
+        dir.mkdirs();
+        return dir;
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+}
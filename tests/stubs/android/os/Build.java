@@ -0,0 +1,19 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.os;
+
+/**
+ * Host stand-in
+ */
+public class Build {
+    public static class VERSION {
+        public static final String RELEASE = System.getProperty("ro.build.version.release", "7.1.2");
+    }
+}
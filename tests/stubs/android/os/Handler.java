@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.os;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host stand-in, only for handlers created on a {@link HandlerThread}
+ */
+public class Handler {
+    private final Looper mLooper;
+
+    public Handler(Looper looper) {
+        mLooper = looper;
+    }
+
+    public final boolean post(Runnable r) {
+        mLooper.mExecutor.execute(r);
+        return true;
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        mLooper.mExecutor.schedule(r, delayMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+}
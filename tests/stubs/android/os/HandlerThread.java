@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.os;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Host stand-in, start() is a no-op and the looper owns the thread
+ */
+public class HandlerThread extends Thread {
+    private Looper mLooper;
+
+    public HandlerThread(final String name) {
+        super(name);
+    }
+
+    @Override
+    public synchronized void start() {
+    }
+
+    public synchronized Looper getLooper() {
+        if (mLooper == null) {
+            final String name = getName();
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mLooper = new Looper(executor);
+        }
+        return mLooper;
+    }
+}
@@ -0,0 +1,23 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.os;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Host stand-in, the messages run on a single-thread executor
+ */
+public class Looper {
+    final ScheduledExecutorService mExecutor;
+
+    Looper(ScheduledExecutorService executor) {
+        mExecutor = executor;
+    }
+}
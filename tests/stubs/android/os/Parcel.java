@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.os;
+
+/**
+ * Host stand-in, nothing is parceled on the host
+ */
+public final class Parcel {
+    public String readString() {
+        throw new UnsupportedOperationException();
+    }
+
+    public int readInt() {
+        throw new UnsupportedOperationException();
+    }
+
+    public long readLong() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void writeString(String s) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void writeInt(int i) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void writeLong(long l) {
+        throw new UnsupportedOperationException();
+    }
+}
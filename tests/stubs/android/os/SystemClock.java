@@ -0,0 +1,19 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.os;
+
+/**
+ * Host stand-in
+ */
+public final class SystemClock {
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+}
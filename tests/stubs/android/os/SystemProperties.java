@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.os;
+
+/**
+ * Host stand-in backed by the system properties of the JVM,
+ * e.g. -Dro.cm.device=bacon
+ */
+public class SystemProperties {
+    public static String get(String key) {
+        return get(key, "");
+    }
+
+    public static String get(String key, String def) {
+        return System.getProperty(key, def);
+    }
+
+    public static int getInt(String key, int def) {
+        return Integer.getInteger(key, def);
+    }
+
+    public static long getLong(String key, long def) {
+        return Long.getLong(key, def);
+    }
+}
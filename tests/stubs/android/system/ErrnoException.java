@@ -0,0 +1,22 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.system;
+
+/**
+ * Host stand-in
+ */
+public final class ErrnoException extends Exception {
+    public final int errno;
+
+    public ErrnoException(String functionName, int errno) {
+        super(functionName + " failed: " + errno);
+        this.errno = errno;
+    }
+}
@@ -0,0 +1,23 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.system;
+
+import java.io.FileDescriptor;
+
+/**
+ * Host stand-in. Nothing can be preallocated from the JVM, callers take
+ * their fallback as on a filesystem without fallocate support.
+ */
+public final class Os {
+    public static void posix_fallocate(FileDescriptor fd, long offset, long length)
+            throws ErrnoException {
+        throw new ErrnoException("posix_fallocate", OsConstants.EOPNOTSUPP);
+    }
+}
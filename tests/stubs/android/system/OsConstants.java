@@ -0,0 +1,18 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.system;
+
+/**
+ * Host stand-in, Linux values
+ */
+public final class OsConstants {
+    public static final int ENOSPC = 28;
+    public static final int EOPNOTSUPP = 95;
+}
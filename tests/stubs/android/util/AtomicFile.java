@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Host stand-in. Like the real one, writes are synced before they replace
+ * the file, but they go through a new file instead of a backup.
+ */
+public class AtomicFile {
+    private final File mBaseName;
+    private final File mNewName;
+
+    public AtomicFile(File baseName) {
+        mBaseName = baseName;
+        mNewName = new File(baseName.getPath() + ".new");
+    }
+
+    public File getBaseFile() {
+        return mBaseName;
+    }
+
+    public FileOutputStream startWrite() throws IOException {
+        return new FileOutputStream(mNewName);
+    }
+
+    public void finishWrite(FileOutputStream str) {
+        try {
+            str.getFD().sync();
+            str.close();
+            if (!mNewName.renameTo(mBaseName)) {
+                Log.w("AtomicFile", "Unable to replace " + mBaseName);
+            }
+        } catch (IOException e) {
+            Log.w("AtomicFile", "finishWrite: Got exception:", e);
+        }
+    }
+
+    public void failWrite(FileOutputStream str) {
+        try {
+            str.close();
+        } catch (IOException e) {
+            Log.w("AtomicFile", "failWrite: Got exception:", e);
+        }
+        mNewName.delete();
+    }
+
+    public FileInputStream openRead() throws FileNotFoundException {
+        return new FileInputStream(mBaseName);
+    }
+
+    public void delete() {
+        mBaseName.delete();
+        mNewName.delete();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2017 The LineageOS Project
+ *
+ * * Licensed under the GNU GPLv2 license
+ *
+ * The text of the license can be found in the LICENSE file
+ * or at https://www.gnu.org/licenses/gpl-2.0.txt
+ */
+
+package android.util;
+
+/**
+ * Host stand-in, warnings and errors go to stderr, the rest only with
+ * -Dtest.verbose=true so it doesn't skew the timings
+ */
+public final class Log {
+    private static final boolean VERBOSE = Boolean.getBoolean("test.verbose");
+
+    public static int v(String tag, String msg) {
+        return VERBOSE ? print("V", tag, msg, null) : 0;
+    }
+
+    public static int d(String tag, String msg) {
+        return VERBOSE ? print("D", tag, msg, null) : 0;
+    }
+
+    public static int d(String tag, String msg, Throwable tr) {
+        return VERBOSE ? print("D", tag, msg, tr) : 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return VERBOSE ? print("I", tag, msg, null) : 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return print("W", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return print("W", tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return print("E", tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return print("E", tag, msg, tr);
+    }
+
+    private static int print(String level, String tag, String msg, Throwable tr) {
+        System.err.println(level + "/" + tag + ": " + msg + (tr != null ? " " + tr : ""));
+        return 0;
+    }
+}